@@ -18,8 +18,15 @@ public abstract class Connection {
 
 	private boolean isUp;
 	protected Message msgOnFly;
+	/** the sending interface of the current transfer if the interfaces
+	 * have been told about the transfer, null if not */
+	private NetworkInterface reportedSender;
 	/** how many bytes this connection has transferred */
 	protected int bytesTransferred;
+	/** kind of the connection in the {@link ConnectionPool} */
+	long poolKind = ConnectionPool.NOT_POOLED;
+	/** how many times the connection has been recycled */
+	private int generation;
 
 	/**
 	 * Creates a new connection between nodes and sets the connection
@@ -37,8 +44,45 @@ public abstract class Connection {
 		this.toInterface = toInterface;
 		this.isUp = true;
 		this.bytesTransferred = 0;
+		this.reportedSender = null;
 	}
 
+	/**
+	 * Resets a connection that has gone down to the state of a new
+	 * connection between the given nodes, for recycling it (see
+	 * {@link ConnectionPool}). Subclasses that have per-connection state
+	 * that is not reset when a transfer starts should override this and
+	 * reset that state too. The generation of the connection is increased.
+	 * @param fromNode The node that initiated the connection
+	 * @param fromInterface The interface that initiated the connection
+	 * @param toNode The node in the other side of the connection
+	 * @param toInterface The interface in the other side of the connection
+	 */
+	protected void reset(DTNHost fromNode, NetworkInterface fromInterface, 
+			DTNHost toNode, NetworkInterface toInterface) {
+		assert !this.isUp && this.msgOnFly == null : "Reset of a connection " +
+			"in use " + this;
+		this.fromNode = fromNode;
+		this.fromInterface = fromInterface;
+		this.toNode = toNode;
+		this.toInterface = toInterface;
+		this.msgFromNode = null;
+		this.isUp = true;
+		this.bytesTransferred = 0;
+		this.reportedSender = null;
+		this.generation++;
+	}
+
+	/**
+	 * Returns the generation of the connection, i.e., how many times it has
+	 * been recycled for a new contact. Code that keeps the connection after
+	 * it went down can compare this with the generation it saw earlier to
+	 * tell if the connection is still the same contact.
+	 * @return The generation of the connection
+	 */
+	public int getGeneration() {
+		return this.generation;
+	}
 
 	/**
 	 * Returns true if the connection is up
@@ -87,6 +131,42 @@ public abstract class Connection {
 	 */
 	public abstract int startTransfer(DTNHost from, Message m);
 
+	/**
+	 * Starts a transfer of a message (see
+	 * {@link #startTransfer(DTNHost, Message)}) and, if it started, tells
+	 * the interfaces of this connection about it. Routers should start
+	 * their transfers with this method, so the transmit and receive counts
+	 * of the interfaces (used e.g. by the energy model) stay correct.
+	 * @param from The host that sends the message
+	 * @param m The message
+	 * @return The value returned by
+	 * {@link MessageRouter#receiveMessage(Message, DTNHost)}
+	 */
+	public int beginTransfer(DTNHost from, Message m) {
+		int retVal = startTransfer(from, m);
+		if (retVal == MessageRouter.RCV_OK) {
+			transferStarted();
+		}
+		return retVal;
+	}
+
+	/**
+	 * Tells the interfaces of this connection that a message transfer has
+	 * started. The interfaces are told about the end of the transfer when
+	 * the transfer is finalized or aborted. The interface of the message's
+	 * sender is told that it is transmitting and the other one that it is
+	 * receiving.
+	 */
+	private void transferStarted() {
+		if (this.msgOnFly == null || this.reportedSender != null) {
+			return;
+		}
+		this.reportedSender = (this.msgFromNode == this.fromNode ?
+				this.fromInterface : this.toInterface);
+		this.reportedSender.transferStarted(this, true);
+		getOtherInterface(this.reportedSender).transferStarted(this, false);
+	}
+
 	/**
 	 * Calculate the current transmission speed from the information
 	 * given by the interfaces, and calculate the missing data amount.
@@ -98,6 +178,8 @@ public abstract class Connection {
      */
 	public void abortTransfer() {
 		assert msgOnFly != null : "No message to abort at " + msgFromNode;	
+		assert reportedSender != null : "Transfer of " + msgOnFly + " at " +
+			this + " was not started with beginTransfer";
 		int bytesRemaining = getRemainingByteCount();
 
 		this.bytesTransferred += msgOnFly.getSize() - bytesRemaining;
@@ -122,6 +204,12 @@ public abstract class Connection {
 	protected void clearMsgOnFly() {
 		this.msgOnFly = null;
 		this.msgFromNode = null;		
+		if (this.reportedSender != null) {
+			NetworkInterface sender = this.reportedSender;
+			this.reportedSender = null;
+			sender.transferEnded(this, true);
+			getOtherInterface(sender).transferEnded(this, false);
+		}
 	}
 
 	/**
@@ -133,6 +221,8 @@ public abstract class Connection {
 	public void finalizeTransfer() {
 		assert this.msgOnFly != null : "Nothing to finalize in " + this;
 		assert msgFromNode != null : "msgFromNode is not set";
+		assert reportedSender != null : "Transfer of " + msgOnFly + " at " +
+			this + " was not started with beginTransfer";
 		
 		this.bytesTransferred += msgOnFly.getSize();
 
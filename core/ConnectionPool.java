@@ -0,0 +1,174 @@
+/* 
+ * Copyright 2010 Aalto University, ComNet
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package core;
+
+import java.util.ArrayDeque;
+
+import util.LongObjectMap;
+
+/**
+ * Pool of connections that have gone down, for recycling them as new
+ * connections instead of allocating a new connection for every contact.
+ * The network interfaces get their connections from the pool with
+ * {@link NetworkInterface#newCBRConnection(NetworkInterface, int)} and
+ * {@link NetworkInterface#newVBRConnection(NetworkInterface)} and release
+ * them to the pool when they are torn down, after both hosts have been
+ * told that the connection went down.
+ * <P>The pooled connections are kept by kind: the speed of a constant
+ * bit-rate connection or {@link #VBR_KIND} for variable bit-rate
+ * connections, so a recycled connection only needs its common state reset
+ * (see {@link Connection#reset(DTNHost, NetworkInterface, DTNHost,
+ * NetworkInterface)}). A released connection is reused only once its
+ * transfer (if any) has been aborted.</P>
+ * <P>Every reuse increases the generation of the connection (see
+ * {@link Connection#getGeneration()}). Code that keeps a reference to a
+ * connection past the down notification has to store the generation with
+ * it and drop the reference if the generation has changed, like
+ * {@link routing.ActiveRouter} does for its sending connections. If some
+ * router or report can't do that, recycling can be turned off with the
+ * {@link #POOL_CONNECTIONS_S} setting.</P>
+ * <P>In steady state contact churn, the connections that come up reuse the
+ * ones that went down earlier, so the connection up and down paths don't
+ * allocate anything. The number of allocated and reused connections is
+ * available from {@link #getNrofCreated()} and {@link #getNrofReused()}.</P>
+ */
+public class ConnectionPool {
+	/** Recycle connections -setting id ({@value}) in the scenario name
+	 * space. Boolean valued. Default = true. */
+	public static final String POOL_CONNECTIONS_S = "poolConnections";
+	/** Kind of the variable bit-rate connections ({@value}) */
+	public static final long VBR_KIND = -1;
+	/** Kind of the connections that are not pooled ({@value}) */
+	public static final long NOT_POOLED = Long.MIN_VALUE;
+
+	/** the pool of the world */
+	private static ConnectionPool pool;
+
+	/** released connections by kind, in release order */
+	private LongObjectMap<ArrayDeque<Connection>> released;
+	/** are the connections recycled */
+	private boolean enabled;
+	/** number of connections created for the pool */
+	private long nrofCreated;
+	/** number of recycled connections */
+	private long nrofReused;
+
+	static {
+		DTNSim.registerForReset(ConnectionPool.class.getCanonicalName());
+		reset();
+	}
+
+	/**
+	 * Creates a new, empty pool.
+	 * @param enabled Are the connections recycled
+	 */
+	private ConnectionPool(boolean enabled) {
+		this.released = new LongObjectMap<ArrayDeque<Connection>>();
+		this.enabled = enabled;
+		this.nrofCreated = 0;
+		this.nrofReused = 0;
+	}
+
+	/**
+	 * Returns the pool of the world
+	 * @return The pool
+	 */
+	public static ConnectionPool getInstance() {
+		if (pool == null) {
+			Settings s = new Settings(SimScenario.SCENARIO_NS);
+			pool = new ConnectionPool(s.contains(POOL_CONNECTIONS_S) ?
+					s.getBoolean(POOL_CONNECTIONS_S) : true);
+		}
+		return pool;
+	}
+
+	/**
+	 * Resets the pool of the world
+	 */
+	public static void reset() {
+		pool = null;
+	}
+
+	/**
+	 * Returns a recycled connection of the given kind reset to connect the
+	 * given interfaces, or null if there is no connection of the kind that
+	 * can be reused
+	 * @param kind Kind of the connection (speed of a constant bit-rate
+	 * connection or {@link #VBR_KIND})
+	 * @param fromNode The node that initiated the connection
+	 * @param fromInterface The interface that initiated the connection
+	 * @param toNode The node in the other side of the connection
+	 * @param toInterface The interface in the other side of the connection
+	 * @return The connection or null
+	 */
+	public Connection obtain(long kind, DTNHost fromNode,
+			NetworkInterface fromInterface, DTNHost toNode,
+			NetworkInterface toInterface) {
+		ArrayDeque<Connection> queue = this.released.get(kind);
+		if (queue == null || queue.isEmpty()) {
+			return null;
+		}
+
+		Connection con = queue.pollFirst();
+		if (con.isTransferring()) {
+			/* the sender's router hasn't aborted the transfer yet */
+			queue.addLast(con);
+			return null;
+		}
+		con.reset(fromNode, fromInterface, toNode, toInterface);
+		this.nrofReused++;
+		return con;
+	}
+
+	/**
+	 * Marks a new connection as one that is released to this pool when it
+	 * goes down
+	 * @param con The new connection
+	 * @param kind Kind of the connection (see
+	 * {@link #obtain(long, DTNHost, NetworkInterface, DTNHost,
+	 * NetworkInterface)})
+	 */
+	public void created(Connection con, long kind) {
+		if (this.enabled) {
+			con.poolKind = kind;
+		}
+		this.nrofCreated++;
+	}
+
+	/**
+	 * Releases a connection that has gone down to the pool. Connections
+	 * that were not created for the pool are ignored.
+	 * @param con The connection
+	 */
+	public void release(Connection con) {
+		if (con.poolKind == NOT_POOLED) {
+			return;
+		}
+		assert !con.isUp() : "Released connection " + con + " is up";
+
+		ArrayDeque<Connection> queue = this.released.get(con.poolKind);
+		if (queue == null) {
+			queue = new ArrayDeque<Connection>();
+			this.released.put(con.poolKind, queue);
+		}
+		queue.addLast(con);
+	}
+
+	/**
+	 * Returns the number of connections created by the interfaces
+	 * @return The number of allocated connections
+	 */
+	public long getNrofCreated() {
+		return this.nrofCreated;
+	}
+
+	/**
+	 * Returns the number of times a connection was recycled
+	 * @return The number of reused connections
+	 */
+	public long getNrofReused() {
+		return this.nrofReused;
+	}
+}
@@ -0,0 +1,218 @@
+/* 
+ * Copyright 2010 Aalto University, ComNet
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package core;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Connections of a network interface, indexed by the interface on the other
+ * end of the connection. Looking up, adding and removing a connection are
+ * constant time operations. The connections are iterated in the order they
+ * were added, except that removing a connection moves the last connection
+ * to the place of the removed one. The order doesn't depend on hash codes so
+ * it is the same in every run.
+ * <P>The positions are kept in an open addressing hash table (linear
+ * probing) of the other interfaces, so adding and removing connections
+ * doesn't allocate anything unless the table has to grow.</P>
+ */
+public class ConnectionTable extends AbstractList<Connection> {
+	/** Initial size of the hash table; must be a power of two ({@value}) */
+	private static final int INITIAL_CAPACITY = 8;
+
+	/** the interface whose connections are in the table */
+	private NetworkInterface owner;
+	/** the connections */
+	private ArrayList<Connection> connections;
+	/** the other interfaces of the connections (hash table slots) */
+	private NetworkInterface[] keys;
+	/** positions of the connections in the list, by the hash table slot */
+	private int[] indexes;
+
+	/**
+	 * Creates a new, empty connection table.
+	 * @param owner The interface whose connections are in the table
+	 */
+	public ConnectionTable(NetworkInterface owner) {
+		this.owner = owner;
+		this.connections = new ArrayList<Connection>();
+		this.keys = new NetworkInterface[INITIAL_CAPACITY];
+		this.indexes = new int[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Returns the connection to another interface
+	 * @param other The interface on the other end of the connection
+	 * @return The connection or null if there is no connection to the
+	 * interface
+	 */
+	public Connection getConnection(NetworkInterface other) {
+		int slot = findSlot(other);
+		if (this.keys[slot] == null) {
+			return null;
+		}
+		return this.connections.get(this.indexes[slot]);
+	}
+
+	@Override
+	public Connection get(int index) {
+		return this.connections.get(index);
+	}
+
+	@Override
+	public int size() {
+		return this.connections.size();
+	}
+
+	/**
+	 * Adds a connection to the end of the table. Only one connection to
+	 * each interface is allowed.
+	 * @param con The connection to add
+	 * @return true
+	 * @throws SimError if there already is a connection to the same interface
+	 */
+	@Override
+	public boolean add(Connection con) {
+		NetworkInterface other = con.getOtherInterface(this.owner);
+		if (this.keys[findSlot(other)] != null) {
+			throw new SimError("Connection to " + other + " already exists in "
+					+ this.owner);
+		}
+		if (2 * (this.connections.size() + 1) > this.keys.length) {
+			grow();
+		}
+		int slot = findSlot(other);
+		this.keys[slot] = other;
+		this.indexes[slot] = this.connections.size();
+		this.connections.add(con);
+		this.modCount++;
+		return true;
+	}
+
+	/**
+	 * Removes the connection at the given position. The last connection of
+	 * the table is moved to its place.
+	 * @param index Position of the connection to remove
+	 * @return The removed connection
+	 */
+	@Override
+	public Connection remove(int index) {
+		int last = this.connections.size() - 1;
+		Connection con = this.connections.get(index);
+		removeSlot(findSlot(con.getOtherInterface(this.owner)));
+
+		if (index != last) {
+			Connection moved = this.connections.get(last);
+			this.connections.set(index, moved);
+			this.indexes[findSlot(moved.getOtherInterface(this.owner))] = index;
+		}
+		this.connections.remove(last);
+		this.modCount++;
+		return con;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		int index = indexOf(o);
+		if (index < 0) {
+			return false;
+		}
+		remove(index);
+		return true;
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		if (!(o instanceof Connection)) {
+			return -1;
+		}
+		Connection con = (Connection)o;
+		int slot = findSlot(con.getOtherInterface(this.owner));
+		if (this.keys[slot] == null ||
+				this.connections.get(this.indexes[slot]) != con) {
+			return -1;
+		}
+		return this.indexes[slot];
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		return indexOf(o);
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return indexOf(o) >= 0;
+	}
+
+	@Override
+	public void clear() {
+		this.connections.clear();
+		Arrays.fill(this.keys, null);
+		this.modCount++;
+	}
+
+	/**
+	 * Returns the hash table slot of an interface, or the empty slot where
+	 * it would be put if it's not in the table
+	 * @param ni The interface
+	 * @return The slot
+	 */
+	private int findSlot(NetworkInterface ni) {
+		int mask = this.keys.length - 1;
+		int slot = hash(ni) & mask;
+		while (this.keys[slot] != null && this.keys[slot] != ni) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Empties a slot of the hash table and moves the following entries of
+	 * the same probe sequence backwards so that they can still be found
+	 * @param slot The slot to empty
+	 */
+	private void removeSlot(int slot) {
+		int mask = this.keys.length - 1;
+		int next = (slot + 1) & mask;
+		while (this.keys[next] != null) {
+			int home = hash(this.keys[next]) & mask;
+			/* move the entry if its home isn't between the hole and it */
+			if (((next - home) & mask) >= ((next - slot) & mask)) {
+				this.keys[slot] = this.keys[next];
+				this.indexes[slot] = this.indexes[next];
+				slot = next;
+			}
+			next = (next + 1) & mask;
+		}
+		this.keys[slot] = null;
+	}
+
+	/**
+	 * Doubles the size of the hash table
+	 */
+	private void grow() {
+		NetworkInterface[] oldKeys = this.keys;
+		int[] oldIndexes = this.indexes;
+		this.keys = new NetworkInterface[oldKeys.length * 2];
+		this.indexes = new int[oldKeys.length * 2];
+		for (int i=0; i<oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int slot = findSlot(oldKeys[i]);
+				this.keys[slot] = oldKeys[i];
+				this.indexes[slot] = oldIndexes[i];
+			}
+		}
+	}
+
+	/**
+	 * Returns the (identity based) hash of an interface
+	 */
+	private static int hash(NetworkInterface ni) {
+		int h = System.identityHashCode(ni) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
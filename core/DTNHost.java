@@ -20,6 +20,8 @@ import java.awt.Color;
  */
 public class DTNHost implements Comparable<DTNHost> {
 	private static int nextAddress = 0;
+	/** number of times any host has moved (see {@link #getMovementEpoch()}) */
+	private static long movementEpoch = 0;
 	private int address;
 
 	private Coord location; 	// where is the host
@@ -40,6 +42,8 @@ public class DTNHost implements Comparable<DTNHost> {
 	private List<MessageListener> msgListeners;
 	private List<MovementListener> movListeners;
 	private List<NetworkInterface> net;
+	/** the (first) interface of each type, indexed by interface type id */
+	private NetworkInterface[] netByType;
 	private ModuleCommunicationBus comBus;
 
 
@@ -95,6 +99,9 @@ public class DTNHost implements Comparable<DTNHost> {
 		this.location = new Coord(0,0);
 		this.address = getNextAddress();
 		this.name = groupId+address;
+		if (this.energy != null) {
+			this.energy.setHost(this);
+		}
 		this.net = new ArrayList<NetworkInterface>();
 
 		for (NetworkInterface i : interf) {
@@ -102,6 +109,12 @@ public class DTNHost implements Comparable<DTNHost> {
 			ni.setHost(this);
 			net.add(ni);
 		}	
+		this.netByType = new NetworkInterface[NetworkInterface.getNrofTypeIds()];
+		for (NetworkInterface ni : net) {
+			if (netByType[ni.getInterfaceTypeId()] == null) {
+				netByType[ni.getInterfaceTypeId()] = ni;
+			}
+		}
 
 		// TODO - think about the names of the interfaces and the nodes
 		//this.name = groupId + ((NetworkInterface)net.get(1)).getAddress();
@@ -141,6 +154,20 @@ public class DTNHost implements Comparable<DTNHost> {
 	 */
 	public static void reset() {
 		nextAddress = 0;
+		movementEpoch = 0;
+	}
+
+	/**
+	 * Returns the movement epoch of the world: a counter that changes every
+	 * time any host moves or is relocated. Code that caches something
+	 * computed from the locations of the hosts (e.g., the detected contacts)
+	 * can compare the epoch to the one of the cached value, since the world
+	 * may update the hosts both before and after moving them at the same
+	 * simulation time.
+	 * @return The movement epoch
+	 */
+	public static long getMovementEpoch() {
+		return movementEpoch;
 	}
 
 	/**
@@ -197,13 +224,20 @@ public class DTNHost implements Comparable<DTNHost> {
 	 * @return true if this node's radio is active (false if not)
 	 */
 	public boolean isRadioActiveByIfaceType(String interfacetype) {
+		return isRadioActiveByIfaceType(NetworkInterface.getTypeId(interfacetype));
+	}
+
+	/**
+	 * Returns true if this node's radio is active (false if not)
+	 * @param typeId id of the type of the interface to verify
+	 * @return true if this node's radio is active (false if not)
+	 */
+	public boolean isRadioActiveByIfaceType(int typeId) {
 		/* TODO: make this work for multiple interfaces based on the same type in the same host */
 		if (!isMovementActive()) 
 			return false;
-		for (NetworkInterface ni : net)
-			if(ni.getInterfaceType().equals(interfacetype))
-				return ni.isActive();
-		return false;
+		NetworkInterface ni = getInterfaceByTypeId(typeId);
+		return ni != null && ni.isActive();
 	}
 
 
@@ -274,6 +308,66 @@ public class DTNHost implements Comparable<DTNHost> {
 		return this.location;
 	}
 
+	/**
+	 * Returns the waypoint this node is currently moving towards
+	 * @return The current destination or null if no destination is set
+	 */
+	public Coord getDestination() {
+		return this.destination;
+	}
+
+	/**
+	 * Returns the speed this node is currently moving with
+	 * @return The current speed
+	 */
+	public double getSpeed() {
+		return this.speed;
+	}
+
+	/**
+	 * Returns the time when this node may continue moving after a pause
+	 * @return The next time to move
+	 */
+	public double getNextTimeToMove() {
+		return this.nextTimeToMove;
+	}
+
+	/**
+	 * Stores the current velocity of this node and returns for how long the
+	 * node keeps moving with that velocity (until it reaches its current
+	 * waypoint or continues moving after a pause).
+	 * @param velocity Array where the x and y velocity are stored
+	 * @return For how long the velocity is valid or 0 if the movement of
+	 * the node is not known. If the movement is not active, the node stays
+	 * still until the movement is activated again, which is not known
+	 * beforehand, and Double.MAX_VALUE is returned.
+	 */
+	public double getVelocity(double[] velocity) {
+		velocity[0] = 0;
+		velocity[1] = 0;
+		if (!isMovementActive()) {
+			return Double.MAX_VALUE; /* stays still */
+		}
+		double now = SimClock.getTime();
+		if (now < this.nextTimeToMove) {
+			return this.nextTimeToMove - now; /* paused */
+		}
+
+		if (this.destination == null || this.speed <= 0) {
+			return 0;
+		}
+		double dist = this.location.distance(this.destination);
+		if (dist == 0) {
+			return 0; /* next path not known yet */
+		}
+		velocity[0] = this.speed *
+				(this.destination.getX() - this.location.getX()) / dist;
+		velocity[1] = this.speed *
+				(this.destination.getY() - this.location.getY()) / dist;
+
+		return dist / this.speed;
+	}
+
 	/**
 	 * Returns the Path this node is currently traveling or null if no
 	 * path is in use at the moment.
@@ -290,6 +384,7 @@ public class DTNHost implements Comparable<DTNHost> {
 	 */
 	public void setLocation(Coord location) {
 		this.location = location.clone();
+		movementEpoch++;
 	}
 
 	/**
@@ -361,12 +456,20 @@ public class DTNHost implements Comparable<DTNHost> {
 	 * Find the network interface based on the interfacetype
 	 */
 	protected NetworkInterface getInterface(String interfacetype) {
-		for (NetworkInterface ni : net) {
-			if (ni.getInterfaceType().equals(interfacetype)) {
-				return ni;
-			}
+		return getInterfaceByTypeId(NetworkInterface.getTypeId(interfacetype));
+	}
+
+	/**
+	 * Find the network interface based on the interface type id
+	 * @param typeId id of the interface type
+	 * @return The (first) interface of the type or null if this host has no
+	 * interface of the type
+	 */
+	public NetworkInterface getInterfaceByTypeId(int typeId) {
+		if (typeId < 0 || typeId >= netByType.length) {
+			return null;
 		}
-		return null;	
+		return netByType[typeId];
 	}
 
 	/**
@@ -393,12 +496,32 @@ public class DTNHost implements Comparable<DTNHost> {
 		}
 		
 		if (up) {
+			ni.forceContact(no);
 			ni.createConnection(no);
 		} else {
 			ni.destroyConnection(no);
 		}
 	}
 
+	/**
+	 * Force a connection with a constant transmit speed (e.g., when
+	 * replaying a contact plan)
+	 * @param anotherHost The host to connect to
+	 * @param interfaceId Type of the interfaces to connect
+	 * @param speed Transmit speed of the connection
+	 */
+	public void forceConnection(DTNHost anotherHost, String interfaceId,
+			int speed) {
+		NetworkInterface ni = getInterface(interfaceId);
+		NetworkInterface no = anotherHost.getInterface(interfaceId);
+
+		assert (ni != null) : "Tried to use a nonexisting interfacetype "+interfaceId;
+		assert (no != null) : "Tried to use a nonexisting interfacetype "+interfaceId;
+
+		ni.forceContact(no);
+		ni.createConnection(no, speed);
+	}
+
 	/**
 	 * for tests only --- do not use!!!
 	 */
@@ -418,18 +541,41 @@ public class DTNHost implements Comparable<DTNHost> {
 	}
 
 	/**
-	 * Updates node's network layer and router.
+	 * Tells the energy model (if any) that the state of this node or one of
+	 * its interfaces has changed so that its power draw must be recomputed
+	 */
+	public void energyStateChanged() {
+		if (energy != null) {
+			energy.stateChanged(this);
+		}
+	}
+
+	/**
+	 * Updates node's network layer and router. Nodes that have run out of
+	 * energy are not updated: once the shutdown has been handled, an update
+	 * of the node returns right away.
 	 * @param simulateConnections Should network layer be updated too
 	 */
 	public void update(boolean simulateConnections) {
+		if (energy != null && energy.isDepleted()) {
+			return; /* shut down, nothing can change any more */
+		}
 		
-		if (energy!=null) energy.update(this);
+		/* sleep and wake up transitions of the interfaces due by now */
+		DutyCycleScheduler.getInstance().update(SimClock.getTime());
+		
+		if (energy != null && energy.update(this)) {
+			/* ran out of energy: drop the connections and let the router
+			 * abort its transfers; after this the node is not updated */
+			tearDownAllConnections();
+			this.router.update();
+			return;
+		}
 
-		if (!isMovementActive()) return;
+		if (!isMovementActive() || !hasEnergy()) return;
 		
 		if (simulateConnections) {
 			for (NetworkInterface i : net) {
-				i.syncIS();
 				i.update();
 			}
 		}
@@ -441,17 +587,8 @@ public class DTNHost implements Comparable<DTNHost> {
 	 * Tears down all connections for a interface in this host.
 	 */
 	private void tearDownAllConnectionsByIface(NetworkInterface i) {
-		// Get all connections for the interface
-		List<Connection> conns = i.getConnections();
-		if (conns.size() != 0) {		
-			// Destroy all connections
-			List<NetworkInterface> removeList =
-				new ArrayList<NetworkInterface>(conns.size());
-			for (Connection con : conns)
-				removeList.add(con.getOtherInterface(i));
-			for (NetworkInterface inf : removeList)
-				i.destroyConnection(inf);
-		}
+		// Destroy all connections (from the last one, without a copy)
+		i.destroyAllConnections();
 	}
 
 	/** 
@@ -480,6 +617,7 @@ public class DTNHost implements Comparable<DTNHost> {
 				return;
 			}
 		}
+		movementEpoch++;
 
 		possibleMovement = timeIncrement * speed;
 		distance = this.location.distance(this.destination);
@@ -0,0 +1,184 @@
+/* 
+ * Copyright 2010 Aalto University, ComNet
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import util.TimingWheel;
+
+/**
+ * Scheduler of the synchronized intermittent sleeping (syncIS) and of the
+ * activeness periods of the network interfaces. An interface with the
+ * {@link NetworkInterface#SYNC_IS_S} setting is awake for the first part
+ * (awake time) of each cycle (total time) and sleeps for the rest of it.
+ * The cycles of an interface start at its phase offset
+ * ({@link NetworkInterface#SYNC_IS_OFFSET_S}). An interface whose
+ * activeness handler has active periods is switched on and off at the
+ * edges of the periods (see
+ * {@link NetworkInterface#getNextActivenessEdge(double)}); the activeness
+ * is computed again at each edge, so the energy model of the host learns
+ * about the change then and not only when something else asks for the
+ * activeness.
+ * <P>Instead of checking the phase of every interface on every update, the
+ * scheduler keeps the time of the next sleep or wake up transition of each
+ * interface in a timing wheel and puts the interfaces to sleep and wakes
+ * them up only at those times. A world update is scheduled for each
+ * transition, so the transitions happen exactly on time, not at the next
+ * regular update. The state of an interface at a transition is derived
+ * from its phase, so the interface ends up in the right state even if
+ * something else put it to sleep or woke it up in between.</P>
+ */
+public class DutyCycleScheduler {
+	/** Number of slots in the transition calendar ({@value}) */
+	public static final int CALENDAR_SLOTS = 1024;
+	/** Times closer than this ({@value}) to a transition are at it */
+	public static final double TIME_EPSILON = 1e-9;
+
+	/** the scheduler of the world */
+	private static DutyCycleScheduler scheduler;
+
+	/** the transition calendar (null until the first update) */
+	private TimingWheel<NetworkInterface> calendar;
+	/** interfaces that have not been scheduled yet */
+	private List<NetworkInterface> added;
+	/** interfaces whose transitions are due (reused list) */
+	private List<NetworkInterface> due;
+	/** sim time of the last update */
+	private double lastUpdate;
+
+	static {
+		DTNSim.registerForReset(DutyCycleScheduler.class.getCanonicalName());
+		reset();
+	}
+
+	/**
+	 * Creates a new scheduler.
+	 */
+	private DutyCycleScheduler() {
+		this.calendar = null;
+		this.added = new ArrayList<NetworkInterface>();
+		this.due = new ArrayList<NetworkInterface>();
+		this.lastUpdate = -1;
+	}
+
+	/**
+	 * Returns the scheduler of the world
+	 * @return The scheduler
+	 */
+	public static DutyCycleScheduler getInstance() {
+		if (scheduler == null) {
+			scheduler = new DutyCycleScheduler();
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Resets the scheduler of the world
+	 */
+	public static void reset() {
+		scheduler = null;
+	}
+
+	/**
+	 * Adds an interface with a syncIS cycle to the scheduler. The interface
+	 * is put to the state of its phase at the next update.
+	 * @param ni The interface
+	 */
+	public void addInterface(NetworkInterface ni) {
+		this.added.add(ni);
+	}
+
+	/**
+	 * Puts the interfaces whose sleep periods start by the given time to
+	 * sleep and wakes up the ones whose awake periods start, and schedules
+	 * their next transitions. Does nothing if there are no transitions due
+	 * or if the scheduler has already been updated at this time.
+	 * @param simTime Current simulation time
+	 */
+	public void update(double simTime) {
+		if (simTime <= this.lastUpdate) {
+			return;
+		}
+		this.lastUpdate = simTime;
+
+		if (this.calendar == null) {
+			double tickLength = SimScenario.getInstance().getUpdateInterval();
+			this.calendar = new TimingWheel<NetworkInterface>(
+					tickLength > 0 ? tickLength : 1, CALENDAR_SLOTS);
+		}
+		if (this.added.isEmpty() && this.calendar.size() == 0) {
+			return;
+		}
+
+		this.due.clear();
+		this.due.addAll(this.added);
+		this.added.clear();
+		this.calendar.poll(simTime, this.due);
+
+		for (NetworkInterface ni : this.due) {
+			double next = Math.min(applyPhase(ni, simTime),
+					applyActiveness(ni, simTime));
+			if (next < Double.MAX_VALUE) {
+				this.calendar.add(ni, next);
+				SimScenario.getInstance().getWorld().scheduleUpdate(next);
+			}
+		}
+	}
+
+	/**
+	 * Computes the activeness of an interface that has active periods again
+	 * (which tells the energy model if it changed)
+	 * @param ni The interface
+	 * @param simTime Current simulation time
+	 * @return Time of the next activeness edge of the interface or
+	 * Double.MAX_VALUE if it has no more edges
+	 */
+	private double applyActiveness(NetworkInterface ni, double simTime) {
+		if (ni.activeTimes == null) {
+			return Double.MAX_VALUE;
+		}
+		ni.invalidateActiveness();
+		ni.isActive();
+
+		return ni.getNextActivenessEdge(simTime);
+	}
+
+	/**
+	 * Puts an interface to sleep or wakes it up depending on the phase of
+	 * its cycle at the given time
+	 * @param ni The interface
+	 * @param simTime Current simulation time
+	 * @return Time of the next transition of the interface or
+	 * Double.MAX_VALUE if it has no cycle
+	 */
+	private double applyPhase(NetworkInterface ni, double simTime) {
+		double awakeTime = ni.syncIS[0];
+		double cycleTime = ni.syncIS[1];
+		if (cycleTime <= 0) {
+			return Double.MAX_VALUE;
+		}
+
+		double phase = (simTime - ni.syncISOffset) % cycleTime;
+		if (phase < 0) {
+			phase += cycleTime;
+		}
+		if (phase >= cycleTime - TIME_EPSILON) {
+			phase = 0; /* at the start of the next cycle */
+		}
+
+		if (phase < awakeTime - TIME_EPSILON) {
+			if (ni.isSleeping() || ni.isSleepPending()) {
+				ni.wakeup();
+			}
+			return simTime + awakeTime - phase;
+		}
+
+		if (!ni.isSleeping() && !ni.isSleepPending()) {
+			ni.sleep(!ni.syncISWaitTransfers, ni.disconnectWhenNotActive);
+		}
+		return simTime + cycleTime - phase;
+	}
+}
@@ -4,6 +4,8 @@
  */
 package core;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 import core.*;
@@ -13,6 +15,23 @@ import core.*;
  * discovery), scan responses, and data transmission. If scanning is done more 
  * often than 1/s, constant scanning is assumed (and power consumption does not
  * increase from {@link #scanEnergy} value).
+ * <P>The energy use is integrated piecewise: the model keeps the current
+ * power draw of the host (sum of the base, interface base, sleep, scan,
+ * transmit and receive rates) and the energy level at the time the draw
+ * last changed. The draw is recomputed only when the state of the host or
+ * one of its interfaces changes (see {@link #stateChanged(DTNHost)}) and the
+ * current energy level is computed lazily from the draw and the time since
+ * the change.</P>
+ * <P>The model also computes when the energy runs out with the current draw.
+ * If that happens before the next regular update, a world update is
+ * scheduled for the exact time so that the host is shut down (see
+ * {@link #update(DTNHost)}) when the energy runs out, not at the next
+ * update.</P>
+ * <P>The energy level, power draw and consumed energy of the host are kept
+ * in a slot of an {@link EnergyStore}. By default each model has a store
+ * of its own, but if {@link #STORE_S} is set, the hosts use the slots of
+ * their addresses in the shared world store, which integrates the energy
+ * use of all the hosts in one pass per update.</P>
  */
 public class EnergyModel { // implements ModuleCommunicationListener {
 	/** Initial units of energy -setting id ({@value}). Can be either a 
@@ -31,22 +50,67 @@ public class EnergyModel { // implements ModuleCommunicationListener {
 	 * {@value report.Report#REPORT_NS}. */
 	public static final String WARMUP_S = "energyWarmup";
 
+	/** Use the world energy store -setting id ({@value}). Boolean valued.
+	 * If true, the energy state of the hosts is kept in the columnar
+	 * {@link EnergyStore#getWorldStore() world store} and integrated for
+	 * all the hosts at once. Default = false. */
+	public static final String STORE_S = "energyStore";
+
 	/** {@link ModuleCommunicationBus} identifier for the "current amount of 
 	 * energy left" variable. Value type: double */
 	public static final String ENERGY_VALUE_ID = "Energy.value";
 	
+	/** Index of the base energy in the consumed energy ledger ({@value}) */
+	public static final int ENERGY_BASE = 0;
+	/** Index of the interface base energy in the ledger ({@value}) */
+	public static final int ENERGY_IBASE = 1;
+	/** Index of the interface sleep energy in the ledger ({@value}) */
+	public static final int ENERGY_SLEEP = 2;
+	/** Index of the scanning energy in the ledger ({@value}) */
+	public static final int ENERGY_SCAN = 3;
+	/** Index of the transmit energy in the ledger ({@value}) */
+	public static final int ENERGY_TRANSMIT = 4;
+	/** Index of the receive energy in the ledger ({@value}) */
+	public static final int ENERGY_RECEIVE = 5;
+	/** Index of the discovery response energy in the ledger ({@value}) */
+	public static final int ENERGY_DISCOVERY = 6;
+	/** Number of energy components in the ledger ({@value}) */
+	public static final int NROF_ENERGY_COMPONENTS = 7;
+	
 	/** Initial energy levels from the settings */
 	private final double[] initEnergy;
 	private final double[] baseEnergy;
 	private double warmupTime;
+	/** should the hosts use the world store */
+	private final boolean useWorldStore;
 	/** current energy level */
 	private double fullCharge;
-	/** current energy level */
-	private double currentEnergy;
 	/** used base energy */
 	private double usedBaseEnergy;
-	/** sim time of the last energy updated */
-	private double lastUpdate;
+	/** the store of the energy state of the host */
+	private EnergyStore store;
+	/** slot of the host in the store */
+	private int slot;
+	/** has the power draw been computed */
+	private boolean drawKnown;
+	/** was the movement of the host active when the draw was computed */
+	private boolean movementActive;
+	/** sim time when the energy runs out with the current power draw */
+	private double depletionTime;
+	/** has a world update been scheduled for the depletion time */
+	private boolean depletionScheduled;
+	/** has the host been told that the energy ran out */
+	private boolean depletionReported;
+	/** update interval of the world (0 until the first update) */
+	private double updateInterval;
+	/** interfaces of the host (null until the draw is first computed) */
+	private List<NetworkInterface> interfaces;
+	/** activeness of each interface when the draw was computed */
+	private boolean[] interfaceActive;
+	/** current power draw of each interface by energy component */
+	private double[][] interfaceDraw;
+	/** consumed energy of each interface by energy component */
+	private double[][] interfaceConsumed;
 
 	private static Random rng = null;
 
@@ -78,6 +142,8 @@ public class EnergyModel { // implements ModuleCommunicationListener {
 		else {
 			this.warmupTime = 0;
 		}
+		
+		this.useWorldStore = s.contains(STORE_S) ? s.getBoolean(STORE_S) : false;
 	}
 	
 	/**
@@ -86,18 +152,52 @@ public class EnergyModel { // implements ModuleCommunicationListener {
 	 */
 	protected EnergyModel(EnergyModel proto) {
 		this.initEnergy = proto.initEnergy;
-		this.currentEnergy = getRandomEnergy(this.initEnergy);
 		this.baseEnergy = proto.baseEnergy;
 		this.usedBaseEnergy = getRandomEnergy(this.baseEnergy);
 		this.fullCharge = getFullCharge(this.initEnergy);
 		this.warmupTime  = proto.warmupTime;
-		this.lastUpdate = 0;
+		this.useWorldStore = proto.useWorldStore;
+		if (this.useWorldStore) {
+			this.store = null; /* the slot is assigned in setHost */
+			this.slot = -1;
+		} else {
+			this.store = new EnergyStore(1);
+			this.slot = 0;
+			this.store.initSlot(this.slot, getRandomEnergy(this.initEnergy),
+					this.warmupTime);
+		}
+		this.drawKnown = false;
+		this.movementActive = false;
+		this.depletionTime = Double.MAX_VALUE;
+		this.depletionScheduled = false;
+		this.depletionReported = false;
+		this.updateInterval = 0;
+		this.interfaces = null;
+		this.interfaceActive = new boolean[0];
+		this.interfaceDraw = new double[0][];
+		this.interfaceConsumed = new double[0][];
 	}
 	
 	public EnergyModel replicate() {
 		return new EnergyModel(this);
 	}
 	
+	/**
+	 * Sets the host of this model. If the model uses the world store, the
+	 * energy state is kept in the slot of the host's address in it. Must
+	 * be called before the model is used.
+	 * @param host The host
+	 */
+	public void setHost(DTNHost host) {
+		if (!this.useWorldStore) {
+			return;
+		}
+		this.store = EnergyStore.getWorldStore();
+		this.slot = host.getAddress();
+		this.store.initSlot(this.slot, getRandomEnergy(this.initEnergy),
+				this.warmupTime);
+	}
+	
 	/**
 	 * returns the higuest initial energy value.
 	 * @param range The min and max values of the range, or if only one value
@@ -140,7 +240,92 @@ public class EnergyModel { // implements ModuleCommunicationListener {
 	 * @return the current energy level
 	 */
 	public double getEnergy() {
-		return this.currentEnergy;
+		double simTime = SimClock.getTime();
+		double energy = this.store.energy[this.slot];
+		if (energy > 0 && this.store.getEnergyUse(this.slot, simTime) >= energy) {
+			integrate(simTime); /* ran out of energy since the last change */
+		}
+		return Math.max(this.store.energy[this.slot] -
+				this.store.getEnergyUse(this.slot, simTime), 0.0);
+	}
+	
+	/**
+	 * Reduces the energy used with the current power draw from the energy
+	 * level and moves the time of the last change to the current time
+	 * @param simTime Current simulation time
+	 */
+	private void integrate(double simTime) {
+		if (this.store.integrate(this.slot, simTime)) {
+			/* ran out of energy: interfaces of the host went off */
+			NetworkInterface.invalidateAllActiveness();
+		}
+	}
+	
+	/**
+	 * Books the energy the current power draw has consumed since the draw
+	 * last changed to the energy components of the host and its interfaces.
+	 * Must be called after integrating and before the draw changes.
+	 */
+	private void bookConsumedEnergy() {
+		double time = this.store.drawTime[this.slot];
+		if (time <= 0) {
+			return;
+		}
+		int base = this.slot * NROF_ENERGY_COMPONENTS;
+		for (int c=0; c<NROF_ENERGY_COMPONENTS; c++) {
+			this.store.consumed[base + c] +=
+				this.store.componentDraw[base + c] * time;
+		}
+		for (int i=0; i<this.interfaceDraw.length; i++) {
+			for (int c=0; c<NROF_ENERGY_COMPONENTS; c++) {
+				this.interfaceConsumed[i][c] += this.interfaceDraw[i][c] * time;
+			}
+		}
+		this.store.drawTime[this.slot] = 0;
+	}
+	
+	/**
+	 * Fills the given array with the energy the host has consumed so far by
+	 * energy component (see {@link #ENERGY_BASE} etc.). The host's totals
+	 * include the consumption of all of its interfaces.
+	 * @param ledger Array of at least {@link #NROF_ENERGY_COMPONENTS}
+	 * values where the consumed energy is stored
+	 * @return The given array
+	 */
+	public double[] getConsumedEnergy(double[] ledger) {
+		double time = this.store.getConsumingTime(this.slot, SimClock.getTime());
+		int base = this.slot * NROF_ENERGY_COMPONENTS;
+		for (int c=0; c<NROF_ENERGY_COMPONENTS; c++) {
+			ledger[c] = this.store.consumed[base + c] +
+				this.store.componentDraw[base + c] * time;
+		}
+		return ledger;
+	}
+	
+	/**
+	 * Fills the given array with the energy one interface of the host has
+	 * consumed so far by energy component (see {@link #ENERGY_BASE} etc.).
+	 * Interfaces have no base energy consumption.
+	 * @param interfaceIndex Index of the interface in the host's interface
+	 * list (see {@link DTNHost#getInterfaces()})
+	 * @param ledger Array of at least {@link #NROF_ENERGY_COMPONENTS}
+	 * values where the consumed energy is stored
+	 * @return The given array
+	 */
+	public double[] getConsumedEnergy(int interfaceIndex, double[] ledger) {
+		if (interfaceIndex >= this.interfaceDraw.length) {
+			for (int c=0; c<NROF_ENERGY_COMPONENTS; c++) {
+				ledger[c] = 0; /* nothing consumed yet */
+			}
+			return ledger;
+		}
+		double time = this.store.getConsumingTime(this.slot, SimClock.getTime());
+		double[] draw = this.interfaceDraw[interfaceIndex];
+		double[] used = this.interfaceConsumed[interfaceIndex];
+		for (int c=0; c<NROF_ENERGY_COMPONENTS; c++) {
+			ledger[c] = used[c] + draw[c] * time;
+		}
+		return ledger;
 	}
 	
 	/**
@@ -150,15 +335,25 @@ public class EnergyModel { // implements ModuleCommunicationListener {
 	 * @param amount The amount of energy to reduce
 	 */
 	protected void reduceEnergy(double amount) {
-		if (SimClock.getTime() < this.warmupTime) {
+		double simTime = SimClock.getTime();
+		if (simTime < this.warmupTime) {
 			return;
 		}
+		if (simTime > this.store.lastChange[this.slot]) {
+			integrate(simTime); /* the draw so far first */
+		}
 		
-		if (amount >= this.currentEnergy) {
-			this.currentEnergy = 0.0;
+		double energy = this.store.energy[this.slot];
+		if (amount >= energy) {
+			if (energy > 0) {
+				/* ran out of energy: interfaces of the host went off */
+				NetworkInterface.invalidateAllActiveness();
+			}
+			this.store.energy[this.slot] = 0.0;
 		} else {
-			this.currentEnergy -= amount;
+			this.store.energy[this.slot] = energy - amount;
 		}
+		updateDepletionTime(simTime);
 		
 		/*if (comBus == null) {
 			return; // model not initialized (via update) yet
@@ -178,6 +373,22 @@ public class EnergyModel { // implements ModuleCommunicationListener {
 	 * host connects (does device discovery)
 	 */
 	public void reduceDiscoveryEnergy(NetworkInterface iface) {
+		double simTime = SimClock.getTime();
+		if (simTime >= this.warmupTime) {
+			integrate(simTime);
+			double used = Math.min(iface.scanResponseEnergy,
+					this.store.energy[this.slot]);
+			this.store.consumed[this.slot * NROF_ENERGY_COMPONENTS +
+				ENERGY_DISCOVERY] += used;
+			/* charged to this host's interface of the same type */
+			for (int i=0; i<this.interfaceConsumed.length; i++) {
+				if (this.interfaces.get(i).getInterfaceTypeId() == 
+						iface.getInterfaceTypeId()) {
+					this.interfaceConsumed[i][ENERGY_DISCOVERY] += used;
+					break;
+				}
+			}
+		}
 		//reduceEnergy(this.scanResponseEnergy);
 		reduceEnergy(iface.scanResponseEnergy);
 		//List<NetworkInterface> ifaceList = getHost().getInterfaces();
@@ -189,72 +400,176 @@ public class EnergyModel { // implements ModuleCommunicationListener {
 	}
 	
 	/**
-	 * Reduces the energy reserve for the amount that is used by sending data
-	 * , base operation and scanning for the other nodes. 
+	 * Checks if the movement activeness of the host has changed since the
+	 * power draw was computed and recomputes the draw if it has. The energy
+	 * use itself is integrated only when the draw changes, so this costs
+	 * nothing for hosts whose state doesn't change. Also checks if the energy
+	 * has run out. If the model uses the world store, the first call of an
+	 * update integrates the energy use of all the hosts.
+	 * @param host The host of this model
+	 * @return True if the energy ran out since the previous call (i.e., the
+	 * host should shut down now), false if not
 	 */
-	public void update(DTNHost host) {
+	public boolean update(DTNHost host) {
 		double simTime = SimClock.getTime();
-		double delta = simTime - this.lastUpdate;
+		if (this.updateInterval == 0) {
+			this.updateInterval = SimScenario.getInstance().getUpdateInterval();
+		}
+		if (this.useWorldStore && this.store.update(simTime)) {
+			/* ran out of energy: interfaces of the hosts went off */
+			NetworkInterface.invalidateAllActiveness();
+		}
+		if (!this.drawKnown || host.isMovementActive() != this.movementActive) {
+			stateChanged(host);
+		}
 		
-		if (delta>0) {
-			if (host.hasEnergy() && host.isMovementActive()) {
-				if (usedBaseEnergy>0) {
-					reduceEnergy(delta * usedBaseEnergy);
-				}
-
-				// TODO: add support for other interfaces of the same type in the host
-				// do not use updateScanning or isScanning (it apply scan and it is miss next scan opportunity)
-				for (NetworkInterface iface : host.getInterfaces()) {
-					if (iface.isActive() && iface.getTransmitRange() > 0) {
-						if (iface.isTransferring()) {
-							// TODO: simplify usiing isInitiator and assume the same characteristic of the net interface to the other side of connection
-							for (Connection c : iface.getConnections()) {
-								if (c.getFromInterface() == iface) {							
-									//System.out.println(simTime+" "+this.lastUpdate+" "+delta+" "+iface.getScanInterval()+" "+scansQtd);
-									// reduce energy for sending data
-									reduceEnergy(delta * iface.transmitEnergy);
-									// reduce energy for reception in other node
-									NetworkInterface oiface = c.getToInterface();
-									DTNHost oh = oiface.getHost();
-									if (oh.energy!=null && oiface.isActive() && oiface.getTransmitRange() > 0) {
-										oh.energy.reduceEnergy(delta * oiface.receiveEnergy);
-									}
-								}
-							}
-						} else {
-							// scanning at this update round
-							// scan quantity = delta / iface.getScanInterval();
-							reduceEnergy(delta * iface.scanEnergy / iface.getScanInterval());
-						}
-					}
-					if (iface.isSleeping()) {
-						// reduce energy in sleeping for network interface 
-						reduceEnergy(delta * iface.sleepEnergy);
-					} else {
-						// reduce base energy for network interface 
-						reduceEnergy(delta * iface.iBaseEnergy);
-					}
+		if (simTime >= this.depletionTime && this.store.energy[this.slot] > 0) {
+			integrate(simTime);
+			reduceEnergy(this.store.energy[this.slot]); /* no rounding leftovers */
+		}
+		if (getEnergy() == 0) {
+			if (this.depletionReported) {
+				return false;
+			}
+			this.depletionReported = true;
+			return true;
+		}
+		
+		scheduleDepletion(simTime);
+		return false;
+	}
+	
+	/**
+	 * Returns true if the energy has run out and {@link #update(DTNHost)}
+	 * has already told the host about it, i.e., the host has shut down
+	 * @return True if the host has shut down due to the energy running out
+	 */
+	public boolean isDepleted() {
+		return this.depletionReported;
+	}
+	
+	/**
+	 * Schedules a world update for the depletion time if the energy runs
+	 * out before the next regular update
+	 * @param simTime Current simulation time
+	 */
+	private void scheduleDepletion(double simTime) {
+		if (this.depletionScheduled || this.updateInterval == 0 ||
+				this.depletionTime >= simTime + this.updateInterval) {
+			return;
+		}
+		this.depletionScheduled = true;
+		SimScenario.getInstance().getWorld().scheduleUpdate(this.depletionTime);
+	}
+	
+	/**
+	 * Integrates the energy use with the old power draw up to the current
+	 * time and computes the new draw. Must be called when the state of the
+	 * host or any of its interfaces that affects the draw changes (sleep and
+	 * wake up, start or end of a transfer, activeness, scan interval).
+	 * @param host The host of this model
+	 */
+	public void stateChanged(DTNHost host) {
+		integrate(SimClock.getTime());
+		bookConsumedEnergy();
+		this.movementActive = host.isMovementActive();
+		this.drawKnown = true;
+		this.store.powerDraw[this.slot] = computePowerDraw(host);
+		updateDepletionTime(SimClock.getTime());
+	}
+	
+	/**
+	 * Computes when the energy runs out with the current power draw and
+	 * schedules a world update for it if needed. Must be called after the
+	 * energy use has been integrated up to the current time.
+	 * @param simTime Current simulation time
+	 */
+	private void updateDepletionTime(double simTime) {
+		double oldDepletionTime = this.depletionTime;
+		double powerDraw = this.store.powerDraw[this.slot];
+		double energy = this.store.energy[this.slot];
+		if (powerDraw > 0 && energy > 0) {
+			this.depletionTime = Math.max(simTime, this.warmupTime) +
+				energy / powerDraw;
+		} else {
+			this.depletionTime = Double.MAX_VALUE;
+		}
+		if (this.depletionTime != oldDepletionTime) {
+			this.depletionScheduled = false;
+			scheduleDepletion(simTime);
+		}
+	}
+	
+	/**
+	 * Returns the current power draw of a host: the base rate and the rates
+	 * of the interfaces, which depend on if the interface is sleeping,
+	 * transferring data (by the counts of the transfers it is sending and
+	 * receiving) or only scanning for the other nodes.
+	 * <P>The activeness of all the interfaces is checked before the draw is
+	 * accumulated: a check may notice that an interface went on or off and
+	 * call {@link #stateChanged(DTNHost)}, which computes the draw again. The
+	 * nested computation must finish before this one starts to add up the
+	 * rates, or the interface rates would be counted twice.</P>
+	 * @param host The host
+	 * @return The power draw (energy units per second)
+	 */
+	private double computePowerDraw(DTNHost host) {
+		if (this.interfaces == null) {
+			this.interfaces = host.getInterfaces();
+			int n = this.interfaces.size();
+			this.interfaceActive = new boolean[n];
+			this.interfaceDraw = new double[n][NROF_ENERGY_COMPONENTS];
+			this.interfaceConsumed = new double[n][NROF_ENERGY_COMPONENTS];
+		}
+		for (int i=0; i<this.interfaceActive.length; i++) {
+			this.interfaceActive[i] = this.interfaces.get(i).isActive();
+		}
+		double[] componentDraw = this.store.componentDraw;
+		int base = this.slot * NROF_ENERGY_COMPONENTS;
+		Arrays.fill(componentDraw, base, base + NROF_ENERGY_COMPONENTS, 0);
+		for (double[] draw : this.interfaceDraw) {
+			Arrays.fill(draw, 0);
+		}
+		if (!this.movementActive) {
+			return 0;
+		}
+		
+		if (usedBaseEnergy > 0) {
+			componentDraw[base + ENERGY_BASE] = usedBaseEnergy;
+		}
+		for (int i=0; i<this.interfaceDraw.length; i++) {
+			NetworkInterface iface = this.interfaces.get(i);
+			double[] draw = this.interfaceDraw[i];
+			if (this.interfaceActive[i] && iface.getTransmitRange() > 0) {
+				if (iface.isTransferring()) {
+					draw[ENERGY_TRANSMIT] += iface.getNrofTransmits() *
+						iface.transmitEnergy;
+					draw[ENERGY_RECEIVE] += iface.getNrofReceives() *
+						iface.receiveEnergy;
+				} else if (iface.getScanInterval() > 0) {
+					// scan quantity = delta / iface.getScanInterval();
+					draw[ENERGY_SCAN] += iface.scanEnergy / iface.getScanInterval();
+				} else {
+					draw[ENERGY_SCAN] += iface.scanEnergy; /* constant scanning */
 				}
-
-				// New verson with send and receive energy reduction, by connection
-				/*for (Connection c : host.getConnections()) {
-					NetworkInterface iface = c.getFromInterface();
-					if (iface.isActive() && c.isTransferring()) {
-						// reduce energy if sending data
-						reduceEnergy(delta * iface.transmitEnergy);
-						// reduce energy for reception in other node 
-						DTNHost oh = c.getOtherNode(host); 
-						NetworkInterface oiface = c.getToInterface();
-						if (oh.energy!=null && oiface.isActive()) {
-							oh.energy.reduceEnergy(delta * oiface.receiveEnergy);
-						}
-					}
-				}*/
-				
+			}
+			if (iface.isSleeping()) {
+				// energy in sleeping for network interface 
+				draw[ENERGY_SLEEP] += iface.sleepEnergy;
+			} else {
+				// base energy for network interface 
+				draw[ENERGY_IBASE] += iface.iBaseEnergy;
+			}
+			for (int c=0; c<NROF_ENERGY_COMPONENTS; c++) {
+				componentDraw[base + c] += draw[c];
 			}
 		}
-			
-		this.lastUpdate = simTime;
+		
+		double total = 0;
+		for (int c=0; c<NROF_ENERGY_COMPONENTS; c++) {
+			total += componentDraw[base + c];
+		}
+		return total;
 	}
 		
 	/**
@@ -0,0 +1,304 @@
+/* 
+ * Copyright 2010 Aalto University, ComNet
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package core;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Columnar store of the energy state of hosts. The state of each host is in
+ * one slot of parallel arrays (energy level, power draw, time of the last
+ * integration etc.) instead of in separate objects, so integrating the
+ * energy use of all the hosts is a tight loop over a few arrays. The
+ * {@link EnergyModel}s of the hosts are views to their slots.
+ * <P>Hosts whose model uses the world store (see
+ * {@link EnergyModel#STORE_S}) have the slot of their network address in
+ * the store returned by {@link #getWorldStore()}, which integrates all of
+ * them once per update (see {@link #update(double)}). Large stores are
+ * integrated in parallel slices using fork/join. The slots don't depend on
+ * each other, so the result is the same as with serial integration.</P>
+ * <P>The energy use of a slot is integrated with its current power draw.
+ * Since the draw of a slot only changes when the model's state changes, the
+ * consumption of the components of the draw is not booked on every
+ * integration; instead, the store keeps the time the current draw has
+ * consumed energy ({@link #drawTime}) and the model books the components
+ * when the draw changes.</P>
+ */
+public class EnergyStore {
+	/** Number of slots integrated by one fork/join task ({@value}) */
+	public static final int SLICE_SIZE = 4096;
+	/** Initial number of slots in the world store ({@value}) */
+	public static final int DEF_CAPACITY = 64;
+
+	/** the store of the hosts using the world store */
+	private static EnergyStore worldStore;
+	/** pool for integrating large stores in parallel */
+	private static ForkJoinPool pool;
+
+	/** current energy level of each slot */
+	protected double[] energy;
+	/** current power draw of each slot (energy units per second) */
+	protected double[] powerDraw;
+	/** sim time of the last integration of each slot */
+	protected double[] lastChange;
+	/** time the current power draw of each slot has consumed energy */
+	protected double[] drawTime;
+	/** end time of the energy warmup period of each slot */
+	protected double[] warmup;
+	/** current power draw of each slot by energy component */
+	protected double[] componentDraw;
+	/** consumed energy of each slot by energy component */
+	protected double[] consumed;
+	/** number of slots in use */
+	private int size;
+	/** sim time of the last integration of all the slots */
+	private double lastUpdate;
+
+	static {
+		DTNSim.registerForReset(EnergyStore.class.getCanonicalName());
+		reset();
+	}
+
+	/**
+	 * Creates a new store.
+	 * @param capacity Initial number of slots
+	 */
+	public EnergyStore(int capacity) {
+		this.energy = new double[capacity];
+		this.powerDraw = new double[capacity];
+		this.lastChange = new double[capacity];
+		this.drawTime = new double[capacity];
+		this.warmup = new double[capacity];
+		this.componentDraw =
+			new double[capacity * EnergyModel.NROF_ENERGY_COMPONENTS];
+		this.consumed =
+			new double[capacity * EnergyModel.NROF_ENERGY_COMPONENTS];
+		this.size = 0;
+		this.lastUpdate = -1;
+	}
+
+	/**
+	 * Returns the store shared by the hosts that use the world store
+	 * @return The world store
+	 */
+	public static EnergyStore getWorldStore() {
+		if (worldStore == null) {
+			worldStore = new EnergyStore(DEF_CAPACITY);
+		}
+		return worldStore;
+	}
+
+	/**
+	 * Resets the world store
+	 */
+	public static void reset() {
+		worldStore = null;
+	}
+
+	/**
+	 * Initializes a slot for a host. Grows the store if the slot is beyond
+	 * its current capacity.
+	 * @param slot Index of the slot
+	 * @param initialEnergy Initial energy level
+	 * @param warmupTime End time of the energy warmup period
+	 */
+	public void initSlot(int slot, double initialEnergy, double warmupTime) {
+		if (slot >= this.energy.length) {
+			grow(Math.max(slot + 1, this.energy.length * 2));
+		}
+		this.energy[slot] = initialEnergy;
+		this.powerDraw[slot] = 0;
+		this.lastChange[slot] = 0;
+		this.drawTime[slot] = 0;
+		this.warmup[slot] = warmupTime;
+		int base = slot * EnergyModel.NROF_ENERGY_COMPONENTS;
+		Arrays.fill(this.componentDraw, base,
+				base + EnergyModel.NROF_ENERGY_COMPONENTS, 0);
+		Arrays.fill(this.consumed, base,
+				base + EnergyModel.NROF_ENERGY_COMPONENTS, 0);
+		this.size = Math.max(this.size, slot + 1);
+	}
+
+	/**
+	 * Returns the number of slots in use (the highest initialized slot + 1)
+	 * @return The number of slots
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Grows the store
+	 * @param capacity The new number of slots
+	 */
+	private void grow(int capacity) {
+		int n = EnergyModel.NROF_ENERGY_COMPONENTS;
+		this.energy = Arrays.copyOf(this.energy, capacity);
+		this.powerDraw = Arrays.copyOf(this.powerDraw, capacity);
+		this.lastChange = Arrays.copyOf(this.lastChange, capacity);
+		this.drawTime = Arrays.copyOf(this.drawTime, capacity);
+		this.warmup = Arrays.copyOf(this.warmup, capacity);
+		this.componentDraw = Arrays.copyOf(this.componentDraw, capacity * n);
+		this.consumed = Arrays.copyOf(this.consumed, capacity * n);
+	}
+
+	/**
+	 * Returns the energy a slot has used with its current power draw since
+	 * the last integration (or since the end of the warmup period)
+	 * @param slot Index of the slot
+	 * @param simTime Current simulation time
+	 * @return The used energy
+	 */
+	public double getEnergyUse(int slot, double simTime) {
+		return this.powerDraw[slot] * getPendingTime(slot, simTime);
+	}
+
+	/**
+	 * Returns the time since the last integration of a slot (or since the
+	 * end of its warmup period)
+	 * @param slot Index of the slot
+	 * @param simTime Current simulation time
+	 * @return The time
+	 */
+	private double getPendingTime(int slot, double simTime) {
+		double from = Math.max(this.lastChange[slot], this.warmup[slot]);
+		if (simTime <= from) {
+			return 0;
+		}
+		return simTime - from;
+	}
+
+	/**
+	 * Returns for how long the current power draw of a slot has actually
+	 * used energy, including the time that is not integrated yet but
+	 * without the time after the energy ran out
+	 * @param slot Index of the slot
+	 * @param simTime Current simulation time
+	 * @return The time
+	 */
+	public double getConsumingTime(int slot, double simTime) {
+		double time = getPendingTime(slot, simTime);
+		double use = this.powerDraw[slot] * time;
+		if (use > this.energy[slot]) {
+			time = time * this.energy[slot] / use;
+		}
+		return this.drawTime[slot] + time;
+	}
+
+	/**
+	 * Reduces the energy used with the current power draw of a slot from
+	 * its energy level and moves the time of the last integration to the
+	 * current time
+	 * @param slot Index of the slot
+	 * @param simTime Current simulation time
+	 * @return True if the energy of the slot ran out, false if not
+	 */
+	public boolean integrate(int slot, double simTime) {
+		return integrate(slot, simTime, this.energy, this.powerDraw,
+				this.lastChange, this.drawTime, this.warmup);
+	}
+
+	/**
+	 * Integrates the energy use of all the slots up to the given time,
+	 * unless they have already been integrated at that time. Stores with
+	 * more than {@link #SLICE_SIZE} slots are integrated in parallel.
+	 * @param simTime Current simulation time
+	 * @return True if the energy of any slot ran out, false if not
+	 */
+	public boolean update(double simTime) {
+		if (simTime <= this.lastUpdate) {
+			return false;
+		}
+		this.lastUpdate = simTime;
+
+		if (this.size <= SLICE_SIZE) {
+			return integrate(0, this.size, simTime);
+		}
+		if (pool == null) {
+			pool = new ForkJoinPool();
+		}
+		return pool.invoke(new Slice(0, this.size, simTime));
+	}
+
+	/**
+	 * Integrates the energy use of a range of slots
+	 * @param from Index of the first slot
+	 * @param to Index of the slot after the last one
+	 * @param simTime Current simulation time
+	 * @return True if the energy of any slot ran out, false if not
+	 */
+	private boolean integrate(int from, int to, double simTime) {
+		/* local copies of the columns for the loop */
+		double[] energy = this.energy;
+		double[] powerDraw = this.powerDraw;
+		double[] lastChange = this.lastChange;
+		double[] drawTime = this.drawTime;
+		double[] warmup = this.warmup;
+		boolean ranOut = false;
+
+		for (int slot = from; slot < to; slot++) {
+			if (integrate(slot, simTime, energy, powerDraw, lastChange,
+					drawTime, warmup)) {
+				ranOut = true;
+			}
+		}
+		return ranOut;
+	}
+
+	/**
+	 * Integrates the energy use of one slot in the given columns
+	 * @return True if the energy of the slot ran out, false if not
+	 */
+	private static boolean integrate(int slot, double simTime,
+			double[] energy, double[] powerDraw, double[] lastChange,
+			double[] drawTime, double[] warmup) {
+		double from = Math.max(lastChange[slot], warmup[slot]);
+		lastChange[slot] = simTime;
+		if (simTime <= from || powerDraw[slot] <= 0 || energy[slot] <= 0) {
+			return false;
+		}
+
+		double time = simTime - from;
+		double use = powerDraw[slot] * time;
+		if (use >= energy[slot]) {
+			drawTime[slot] += time * energy[slot] / use;
+			energy[slot] = 0;
+			return true;
+		}
+		drawTime[slot] += time;
+		energy[slot] -= use;
+		return false;
+	}
+
+	/**
+	 * A fork/join task that integrates a range of slots, splitting it in
+	 * halves until the range is at most {@link #SLICE_SIZE} slots
+	 */
+	private class Slice extends RecursiveTask<Boolean> {
+		private static final long serialVersionUID = 1L;
+		private int from;
+		private int to;
+		private double simTime;
+
+		private Slice(int from, int to, double simTime) {
+			this.from = from;
+			this.to = to;
+			this.simTime = simTime;
+		}
+
+		@Override
+		protected Boolean compute() {
+			if (to - from <= SLICE_SIZE) {
+				return integrate(from, to, simTime);
+			}
+			int middle = (from + to) >>> 1;
+			Slice left = new Slice(from, middle, simTime);
+			left.fork();
+			boolean ranOut = new Slice(middle, to, simTime).compute();
+			return left.join() || ranOut;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/* 
+ * Copyright 2010 Aalto University, ComNet
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Table of the message IDs of the world. Each ID is interned to a dense
+ * integer index (0, 1, 2, ...) when the message is created at its source
+ * (see {@link routing.MessageRouter#createNewMessage(Message)}), so the
+ * routers can keep their message tables keyed by the indices (see
+ * {@link util.LongObjectMap}) instead of by the ID strings. All the copies
+ * of a message have the same ID and thus the same index. The ID strings
+ * are available by their indices for reports and the GUI.
+ * <P>The copies of a message also share the same ID string object, so the
+ * table first looks the index of an ID up by the identity of the string.
+ * Only an equal string that is a different object (e.g., an ID read from
+ * an external events file) is hashed and compared by its characters.</P>
+ */
+public class MessageIdTable {
+	/** Index of an ID that is not in the table ({@value}) */
+	public static final int UNKNOWN_ID = -1;
+
+	/** the table of the world */
+	private static MessageIdTable table;
+
+	/** indices of the IDs */
+	private HashMap<String, Integer> indices;
+	/** IDs by index */
+	private List<String> ids;
+	/** the interned ID strings in an identity hash table (open addressing) */
+	private String[] identityKeys;
+	/** indices of the ID strings of the identity hash table */
+	private int[] identityIndices;
+
+	static {
+		DTNSim.registerForReset(MessageIdTable.class.getCanonicalName());
+		reset();
+	}
+
+	/**
+	 * Creates a new, empty table.
+	 */
+	private MessageIdTable() {
+		this.indices = new HashMap<String, Integer>();
+		this.ids = new ArrayList<String>();
+		this.identityKeys = new String[64];
+		this.identityIndices = new int[64];
+	}
+
+	/**
+	 * Returns the table of the world
+	 * @return The table
+	 */
+	public static MessageIdTable getInstance() {
+		if (table == null) {
+			table = new MessageIdTable();
+		}
+		return table;
+	}
+
+	/**
+	 * Resets the table of the world
+	 */
+	public static void reset() {
+		table = null;
+	}
+
+	/**
+	 * Returns the index of an ID and adds the ID to the table if it's not
+	 * there yet
+	 * @param id The message ID
+	 * @return The index of the ID
+	 */
+	public int intern(String id) {
+		int known = getIdentityIndex(id);
+		if (known != UNKNOWN_ID) {
+			return known;
+		}
+		Integer index = this.indices.get(id);
+		if (index == null) {
+			index = this.ids.size();
+			this.indices.put(id, index);
+			this.ids.add(id);
+			putIdentityIndex(id, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the index of an ID without adding it to the table
+	 * @param id The message ID
+	 * @return The index of the ID or {@link #UNKNOWN_ID} if the ID is not
+	 * in the table
+	 */
+	public int getIndex(String id) {
+		int known = getIdentityIndex(id);
+		if (known != UNKNOWN_ID) {
+			return known;
+		}
+		Integer index = this.indices.get(id);
+		return (index == null ? UNKNOWN_ID : index);
+	}
+
+	/**
+	 * Returns the ID of an index
+	 * @param index The index
+	 * @return The message ID
+	 */
+	public String getId(int index) {
+		return this.ids.get(index);
+	}
+
+	/**
+	 * Returns the number of IDs in the table
+	 * @return The number of IDs
+	 */
+	public int size() {
+		return this.ids.size();
+	}
+
+	/**
+	 * Returns the index of an interned ID string object by its identity
+	 * @param id The ID string
+	 * @return The index or {@link #UNKNOWN_ID} if the string object has not
+	 * been interned (an equal string object may have been)
+	 */
+	private int getIdentityIndex(String id) {
+		int mask = this.identityKeys.length - 1;
+		int i = System.identityHashCode(id) & mask;
+		for (String key; (key = this.identityKeys[i]) != null;
+				i = (i + 1) & mask) {
+			if (key == id) {
+				return this.identityIndices[i];
+			}
+		}
+		return UNKNOWN_ID;
+	}
+
+	/**
+	 * Puts an interned ID string object to the identity hash table
+	 * @param id The ID string
+	 * @param index Index of the ID
+	 */
+	private void putIdentityIndex(String id, int index) {
+		if (this.ids.size() > this.identityKeys.length / 2) {
+			String[] oldKeys = this.identityKeys;
+			int[] oldIndices = this.identityIndices;
+			this.identityKeys = new String[oldKeys.length * 2];
+			this.identityIndices = new int[oldKeys.length * 2];
+			for (int i=0; i<oldKeys.length; i++) {
+				if (oldKeys[i] != null) {
+					putIdentityIndex(oldKeys[i], oldIndices[i]);
+				}
+			}
+		}
+		int mask = this.identityKeys.length - 1;
+		int i = System.identityHashCode(id) & mask;
+		while (this.identityKeys[i] != null) {
+			i = (i + 1) & mask;
+		}
+		this.identityKeys[i] = id;
+		this.identityIndices[i] = index;
+	}
+}
@@ -6,8 +6,10 @@ package core;
 
 import interfaces.ConnectivityGrid;
 import interfaces.ConnectivityOptimizer;
+import interfaces.ContactDetector;
 
-import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
 
@@ -45,10 +47,32 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	
 	/** SyncIS total awake time and total time -setting id ({@value}). */
 	public static final String SYNC_IS_S = "syncIS";
+	/** SyncIS phase offset -setting id ({@value}). The awake periods start
+	 * at times offset + k * total time. Can also be set per group.
+	 * Default = 0. */
+	public static final String SYNC_IS_OFFSET_S = "syncISOffset";
+	/** SyncIS wait for transfers -setting id ({@value}). Boolean valued. If
+	 * true, an interface that is transferring when its sleep period starts
+	 * goes to sleep when the transfers have finished (if the sleep period
+	 * has not ended by then); if false, the transfers are aborted. Can also
+	 * be set per group. Default = false. */
+	public static final String SYNC_IS_WAIT_S = "syncISWaitTransfers";
 
 	/** Destroy all connection on interface when not isActive() -setting id ({@value}). */
 	public static final String DISCONNECT_NOT_ACTIVE_S = "disconnectWhenNotActive";
 
+	/** Neighbour list skin distance -setting id ({@value}). If set (and
+	 * greater than zero), the interfaces of this type keep lists of the
+	 * interfaces within transmit range + skin and re-check only those until
+	 * they have moved more than half of the skin. Default is 0 (no lists). */
+	public static final String NEIGHBOUR_SKIN_S = "neighbourSkin";
+
+	/** Contact time prediction -setting id ({@value}). If true, the times
+	 * the interfaces of this type come into and go out of range are solved
+	 * from the hosts' movement and the contacts are started and ended at
+	 * those times instead of at the next update. Default is false. */
+	public static final String PREDICT_CONTACTS_S = "predictContacts";
+
 	/** 
 	 * Sub-namespace for the network related settings in the Group namespace
 	 * ({@value}) 
@@ -76,15 +100,26 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	public static final String IBASE_ENERGY_ID = "Network.iBaseEnergy";
 	public static final String SLEEP_ENERGY_ID = "Network.sleepEnergy";
 
-
-	private static final int CON_UP = 1;
-	private static final int CON_DOWN = 2;
+	/** Id of an interface type that has no interfaces ({@value}) */
+	public static final int UNKNOWN_TYPE_ID = -1;
 
 	private static Random rng;
+	/** ids of the interface types (interned type names) */
+	private static HashMap<String, Integer> typeIds;
+	/** activeness of all the interfaces at {@link #activenessTime} */
+	private static BitSet activeness;
+	/** interfaces whose activeness is known at {@link #activenessTime} */
+	private static BitSet activenessKnown;
+	/** sim time of the cached activeness values */
+	private static double activenessTime;
+	/** next free index in the activeness cache */
+	private static int nextCacheIndex;
 	protected DTNHost host = null;
 
 	protected String interfacetype;
-	protected List<Connection> connections; // connected hosts
+	/** id of the interface type (see {@link #internTypeId(String)}) */
+	protected int interfaceTypeId;
+	protected ConnectionTable connections; // connected hosts
 	private List<ConnectionListener> cListeners = null; // list of listeners
 	private int address; // network interface address
 	private Color rangeColor;
@@ -92,9 +127,13 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	protected double oldTransmitRange;
 	protected int transmitSpeed;
 	protected ConnectivityOptimizer optimizer = null;
+	/** world-level contact detection of this interface type */
+	protected ContactDetector detector = null;
 	/** scanning interval, or 0.0 if n/a */
 	private double scanInterval;
 	private double lastScanTime;
+	/** sim time of the update when the current scan round started */
+	private double scanRoundTime = -1;
 	/** energy usage per scan */
 	public double scanEnergy;
 	/** energy usage in device discovery response per operation */
@@ -107,10 +146,21 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	public double iBaseEnergy;
 	/** energy usage sleeping per second */
 	public double sleepEnergy;
+	/** energy cost of routing through this interface (see
+	 * {@link #getRoutingCost()}) */
+	private double routingCost;
 	/** sleep mode on/off */
 	private boolean sleep;
+	/** should the interface go to sleep when its transfers finish */
+	private boolean sleepPending;
+	/** activeness of the interface when it was last computed */
+	private boolean wasActive = false;
 	/** if false does not destroy connection when isActive() (sleep, energy and active movement) is false */
 	public boolean disconnectWhenNotActive;
+	/** skin distance of the neighbour lists, or 0.0 if n/a */
+	protected double neighbourSkin;
+	/** are the contact times predicted */
+	protected boolean predictContacts;
 	/** Update interval of sim time */
 	public double updateInterval;
 
@@ -118,13 +168,34 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	
 	/** activeness handler for the node group */
 	private ActivenessHandler ah;
+	/** start and end times of the active periods of the activeness
+	 * handler (null if the handler has no active periods) */
+	double[] activeTimes;
 	/** maximum activeness jitter value for the node group */
 	private int activenessJitterMax;
 	/** this interface's activeness jitter value */
 	private int activenessJitterValue;
+	/** index of this interface in the activeness cache */
+	private int cacheIndex;
+
+	/** number of connections of this interface transferring a message */
+	protected int nrofTransfers;
+	/** number of transfers where this interface sends the message */
+	protected int nrofTransmits;
+	/** number of transfers where this interface receives the message */
+	protected int nrofReceives;
+	/** number of connected interfaces that are transferring a message */
+	protected int nrofActiveNeighbours;
+	/** true if the transfers of this interface or its neighbours have
+	 * changed since the flag was cleared */
+	protected boolean neighbourhoodChanged;
 
 	/** set syncIS values: [0] is the awake time, [1] is the total time. [1]-[0] is the sleep time */
 	public double[] syncIS = {0,0};
+	/** phase offset of the syncIS cycles */
+	public double syncISOffset;
+	/** do the syncIS sleep periods wait for the transfers to finish */
+	public boolean syncISWaitTransfers;
 
 	static {
 		DTNSim.registerForReset(NetworkInterface.class.getCanonicalName());
@@ -136,6 +207,48 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	 */
 	public static void reset() {
 		rng = new Random(0);
+		typeIds = new HashMap<String, Integer>();
+		activeness = new BitSet();
+		activenessKnown = new BitSet();
+		activenessTime = -1;
+		nextCacheIndex = 0;
+	}
+
+	/**
+	 * Returns the id of an interface type and gives the type an id if it
+	 * doesn't have one yet. The ids are small integers (0, 1, 2...) given in
+	 * the order the interfaces of the types are created, so they can be
+	 * compared and used as array indexes instead of the type names.
+	 * @param interfacetype Name of the interface type
+	 * @return The id of the interface type
+	 */
+	private static int internTypeId(String interfacetype) {
+		Integer id = typeIds.get(interfacetype);
+		if (id == null) {
+			id = typeIds.size();
+			typeIds.put(interfacetype, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the id of an interface type (see
+	 * {@link #internTypeId(String)}). Doesn't give ids to unknown types.
+	 * @param interfacetype Name of the interface type
+	 * @return The id of the interface type or {@link #UNKNOWN_TYPE_ID} if
+	 * no interface of the type has been created
+	 */
+	public static int getTypeId(String interfacetype) {
+		Integer id = typeIds.get(interfacetype);
+		return (id == null ? UNKNOWN_TYPE_ID : id);
+	}
+
+	/**
+	 * Returns the number of interface types that have an id
+	 * @return The number of interface type ids
+	 */
+	public static int getNrofTypeIds() {
+		return typeIds.size();
 	}
 	
 	/**
@@ -143,7 +256,14 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	 */
 	public NetworkInterface(Settings s) {
 		this.interfacetype = s.getNameSpace();
-		this.connections = new ArrayList<Connection>();
+		this.interfaceTypeId = internTypeId(this.interfacetype);
+		this.cacheIndex = nextCacheIndex++;
+		this.nrofTransfers = 0;
+		this.nrofTransmits = 0;
+		this.nrofReceives = 0;
+		this.nrofActiveNeighbours = 0;
+		this.neighbourhoodChanged = true;
+		this.connections = new ConnectionTable(this);
 
 		this.transmitRange = s.getDouble(TRANSMIT_RANGE_S);
 		this.transmitSpeed = s.getInt(TRANSMIT_SPEED_S);
@@ -178,6 +298,10 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 						"the first value (awake time) greater than the second value (total time)");
 			}
 		}
+		this.syncISOffset = s.contains(SYNC_IS_OFFSET_S) ?
+				s.getDouble(SYNC_IS_OFFSET_S) : 0.0;
+		this.syncISWaitTransfers = s.contains(SYNC_IS_WAIT_S) ?
+				s.getBoolean(SYNC_IS_WAIT_S) : false;
 
 		if (s.contains(DISCONNECT_NOT_ACTIVE_S)) {
 			this.disconnectWhenNotActive = s.getBoolean(DISCONNECT_NOT_ACTIVE_S);
@@ -185,12 +309,26 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 			this.disconnectWhenNotActive = true;
 		}
 
+		if (s.contains(NEIGHBOUR_SKIN_S)) {
+			this.neighbourSkin = s.getDouble(NEIGHBOUR_SKIN_S);
+			ensurePositiveValue(neighbourSkin, NEIGHBOUR_SKIN_S);
+		} else {
+			this.neighbourSkin = 0.0;
+		}
+
+		if (s.contains(PREDICT_CONTACTS_S)) {
+			this.predictContacts = s.getBoolean(PREDICT_CONTACTS_S);
+		} else {
+			this.predictContacts = false;
+		}
+
 		/*if (s.contains(RANGE_COLOR_S)) {
 			rangeColor = Color.getColor(s.getSetting(RANGE_COLOR_S));	
 		} else {
 			rangeColor = Color.green;
 		}*/
 		
+		updateRoutingCost();
 	}
 	
 	/**
@@ -198,11 +336,21 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	 */
 	public NetworkInterface() {
 		this.interfacetype = "Default";
+		this.interfaceTypeId = internTypeId(this.interfacetype);
+		this.cacheIndex = nextCacheIndex++;
+		this.nrofTransfers = 0;
+		this.nrofTransmits = 0;
+		this.nrofReceives = 0;
+		this.nrofActiveNeighbours = 0;
+		this.neighbourhoodChanged = true;
 		this.syncIS[0]=0;
 		this.syncIS[1]=0;		
+		this.syncISOffset = 0;
+		this.syncISWaitTransfers = false;
 		this.sleep = false;
+		this.sleepPending = false;
 		this.disconnectWhenNotActive = true;
-		this.connections = new ArrayList<Connection>();
+		this.connections = new ConnectionTable(this);
 		this.ctContactsByTime = new int[24]; 
 		for (int i=0; i<24; i++)
 			this.ctContactsByTime[i]=0;
@@ -212,10 +360,17 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	 * copy constructor
 	 */
 	public NetworkInterface(NetworkInterface ni) {
-		this.connections = new ArrayList<Connection>();
+		this.connections = new ConnectionTable(this);
 		this.host = ni.host;
 		this.cListeners = ni.cListeners;
 		this.interfacetype = ni.interfacetype;
+		this.interfaceTypeId = ni.interfaceTypeId;
+		this.cacheIndex = nextCacheIndex++;
+		this.nrofTransfers = 0;
+		this.nrofTransmits = 0;
+		this.nrofReceives = 0;
+		this.nrofActiveNeighbours = 0;
+		this.neighbourhoodChanged = true;
 		this.transmitRange = ni.transmitRange;
 		this.transmitSpeed = ni.transmitSpeed;
 		this.scanEnergy = ni.scanEnergy;
@@ -224,14 +379,21 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 		this.receiveEnergy = ni.receiveEnergy;
 		this.iBaseEnergy = ni.iBaseEnergy;
 		this.sleepEnergy = ni.sleepEnergy;
+		this.routingCost = ni.routingCost;
 		this.syncIS = ni.syncIS;
+		this.syncISOffset = ni.syncISOffset;
+		this.syncISWaitTransfers = ni.syncISWaitTransfers;
 		this.sleep = ni.sleep;
+		this.sleepPending = false;
 		this.disconnectWhenNotActive = ni.disconnectWhenNotActive;		
+		this.neighbourSkin = ni.neighbourSkin;
+		this.predictContacts = ni.predictContacts;
 		this.ctContactsByTime = new int[24]; 
 		for (int i=0; i<24; i++)
 			this.ctContactsByTime[i]=0;
 		
 		this.ah = ni.ah;
+		this.activeTimes = ni.activeTimes;
 		if (ni.activenessJitterMax > 0) {
 			this.activenessJitterValue = rng.nextInt(ni.activenessJitterMax);
 		} else {
@@ -289,10 +451,19 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 		
 		if (transmitRange > 0) {
 			optimizer = ConnectivityGrid.ConnectivityGridFactory(
-					this.interfacetype.hashCode(), transmitRange);
+					this.interfaceTypeId, transmitRange + neighbourSkin);
 			optimizer.addInterface(this);
+			detector = ContactDetector.ContactDetectorFactory(
+					this.interfaceTypeId, optimizer, neighbourSkin,
+					predictContacts);
+			detector.addInterface(this);
 		} else {
 			optimizer = null;
+			detector = null;
+		}
+		
+		if (this.syncIS[1] > 0 || this.activeTimes != null) {
+			DutyCycleScheduler.getInstance().addInterface(this);
 		}
 	}
 	
@@ -303,6 +474,8 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	public void setGroupSettings(Settings s) {
 		s.setSubNameSpace(NET_SUB_NS);	
 		ah = new ActivenessHandler(s);
+		this.activeTimes = s.contains(ActivenessHandler.ACTIVE_TIMES_S) ?
+				s.getCsvDoubles(ActivenessHandler.ACTIVE_TIMES_S) : null;
 		
 		if (s.contains(SCAN_INTERVAL_S)) {
 			this.scanInterval =  s.getDouble(SCAN_INTERVAL_S);
@@ -346,6 +519,12 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 		//} else {
 		//	this.disconnectWhenNotActive = true;
 		}
+		if (s.contains(SYNC_IS_OFFSET_S)) {
+			this.syncISOffset = s.getDouble(SYNC_IS_OFFSET_S);
+		}
+		if (s.contains(SYNC_IS_WAIT_S)) {
+			this.syncISWaitTransfers = s.getBoolean(SYNC_IS_WAIT_S);
+		}
 		if (s.contains(ACT_JITTER_S)) {
 			this.activenessJitterMax = s.getInt(ACT_JITTER_S);
 		}
@@ -353,6 +532,7 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 			rangeColor = Color.getColor(s.getSetting(RANGE_COLOR_S));	
 		}*/
 		
+		updateRoutingCost();
 		s.restoreSubNameSpace();
 	}
 
@@ -362,6 +542,14 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	public String getInterfaceType() {
 		return interfacetype;
 	}
+
+	/**
+	 * Returns the id of the interface type of this interface
+	 * @return The interface type id
+	 */
+	public int getInterfaceTypeId() {
+		return interfaceTypeId;
+	}
 	
 	/**
 	 * Check if interface is sleeping / Put interface to sleep / Wake up interface
@@ -370,22 +558,43 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 		return sleep;
 	}
 
+	/**
+	 * Returns true if the interface goes to sleep when its current transfers
+	 * finish
+	 * @return true if a sleep is pending
+	 */
+	public boolean isSleepPending() {
+		return sleepPending;
+	}
+
 	public void wakeup() { 
 		sleep = false;
+		sleepPending = false;
+		invalidateActiveness();
+		stateChanged();
+		if (detector != null) {
+			detector.scheduleScan(this); /* off the calendar while asleep */
+		}
 	}
 	
 	/**
 	 * For Synchronized Intermittent Sleeping mode
-	 * @param forceSleep depending or not of is transfering entre in sleep mode
+	 * @param forceSleep depending or not of is transfering entre in sleep mode.
+	 * If false and the interface is transferring, the interface goes to
+	 * sleep when the transfers have finished (unless it is woken up before)
 	 * @param forceDestroyConnections if not transfering destroy the connections in the iinterface
 	 */
-	// TODO: a mode of sleep that wait to connections and and sleep interface
 	public boolean sleep(boolean forceSleep, boolean forceDesconnections) { 
 		// if not transferring data go to sleep mode
 		if (forceSleep || !isTransferring()) {
 			this.sleep = true;
+			this.sleepPending = false;
+			invalidateActiveness();
+			stateChanged();
 			if (forceDesconnections) 
 				destroyAllConnections();
+		} else {
+			this.sleepPending = true; /* sleep when the transfers end */
 		}
 		return sleep;
 	}
@@ -398,10 +607,36 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 		return this.scanInterval;
 	}
 
+	/**
+	 * Returns the energy cost of routing messages through this interface:
+	 * the scanning energy per second plus the transmit and receive
+	 * energies. An interface without a scan interval scans constantly, like
+	 * in the {@link EnergyModel}. The cost is computed when the interface is
+	 * configured and when its scan interval changes.
+	 * @return The routing cost
+	 */
+	public double getRoutingCost() {
+		return this.routingCost;
+	}
+
+	/**
+	 * Computes the routing cost of this interface
+	 */
+	private void updateRoutingCost() {
+		double scanCost = this.scanInterval > 0 ?
+				this.scanEnergy / this.scanInterval : this.scanEnergy;
+		this.routingCost = scanCost + this.transmitEnergy + this.receiveEnergy;
+	}
+
 	public void setScanInterval(Double scanInterval) {
 		ModuleCommunicationBus comBus = this.host.getComBus();
 		this.scanInterval = scanInterval;
 		comBus.updateProperty(getInterfaceType()+"."+SCAN_INTERVAL_ID, this.scanInterval);
+		updateRoutingCost();
+		if (detector != null) {
+			detector.scheduleScan(this);
+		}
+		stateChanged();
 	}
 
 
@@ -448,10 +683,104 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	}
 	
 	/**
-	 * Returns true if the interface is on at the moment (false if not)
+	 * Returns true if the interface is on at the moment (false if not).
+	 * The activeness of each interface is computed only once per simulation
+	 * time and cached for the other calls at the same time.
 	 * @return true if the interface is on at the moment (false if not)
 	 */
 	public boolean isActive() {
+		double simTime = SimClock.getTime();
+		if (simTime != activenessTime) {
+			/* new update round; forget the old values */
+			activenessKnown.clear();
+			activenessTime = simTime;
+		}
+		if (activenessKnown.get(cacheIndex)) {
+			return activeness.get(cacheIndex);
+		}
+
+		boolean active = computeActiveness();
+		activeness.set(cacheIndex, active);
+		activenessKnown.set(cacheIndex);
+		if (active != wasActive) {
+			wasActive = active;
+			stateChanged();
+		}
+		return active;
+	}
+
+	/**
+	 * Returns the next time the activeness handler of this interface
+	 * switches the interface on or off (the edges of its active periods). The
+	 * handler checks the times with the activeness offset of this
+	 * interface added, so the switches happen at the start and end times
+	 * of the active periods minus the offset. The handler counts both the
+	 * start and the end time as active, so the switch on happens at the
+	 * start time and the switch off just after the end time.
+	 * @param simTime Current simulation time
+	 * @return The time of the next switch after the given time or
+	 * Double.MAX_VALUE if there are no more switches
+	 */
+	public double getNextActivenessEdge(double simTime) {
+		if (this.activeTimes == null) {
+			return Double.MAX_VALUE;
+		}
+		double next = Double.MAX_VALUE;
+		for (int i=0; i<this.activeTimes.length; i++) {
+			double edge = this.activeTimes[i] - this.activenessJitterValue;
+			if (i % 2 == 1) {
+				edge = Math.nextUp(edge); /* end of an active period */
+			}
+			if (edge > simTime && edge < next) {
+				next = edge;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Returns the earliest time an interface that is not active now can be
+	 * switched on again. The activeness handler switches it on at its next
+	 * edge (see {@link #getNextActivenessEdge(double)}), a sleeping
+	 * interface when it is woken up, and an interface of a host without
+	 * energy never.
+	 * @param simTime Current simulation time
+	 * @return The time, the current time if the time is not known (e.g.,
+	 * the movement of the host is not active), or Double.MAX_VALUE if the
+	 * interface stays off until it is woken up or for good
+	 */
+	public double getNextActiveTime(double simTime) {
+		if (!host.hasEnergy() || isSleeping()) {
+			return Double.MAX_VALUE;
+		}
+		if (!this.host.isMovementActive()) {
+			return simTime;
+		}
+		return getNextActivenessEdge(simTime);
+	}
+
+	/**
+	 * Forgets the cached activeness of this interface, so it is computed
+	 * again on the next {@link #isActive()} call. Must be called when
+	 * something that affects the activeness changes during an update.
+	 */
+	public void invalidateActiveness() {
+		activenessKnown.clear(cacheIndex);
+	}
+
+	/**
+	 * Forgets the cached activeness of all the interfaces (e.g., when a
+	 * host runs out of energy).
+	 */
+	public static void invalidateAllActiveness() {
+		activenessKnown.clear();
+	}
+
+	/**
+	 * Computes whether the interface is on at the moment.
+	 * @return true if the interface is on at the moment (false if not)
+	 */
+	protected boolean computeActiveness() {
 		//boolean active;
 
 		// if iface is sleeping or host has no active movement or host has no energy remain
@@ -478,7 +807,8 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	
 	/**
 	 * Checks if this interface is currently in the scanning mode 
-	 * and update lastScanTime
+	 * and update lastScanTime. Returns the same answer for every call
+	 * during the same update.
 	 * @return True if the interface is scanning; false if not
 	 */
 	public boolean updateScanning() {
@@ -498,55 +828,185 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 				//lastScanTime = simTime; /* time to start the next scan round case next update interval*/
 				//lastScanTime += scanInterval; /* time to start the next scan round case on the update interval*/
 				lastScanTime = (delta > updateInterval) ? simTime : nextScanTime;
+				scanRoundTime = simTime;
 				return true;
 			}
-			if (simTime != lastScanTime ) {
+			if (simTime != lastScanTime && simTime != scanRoundTime) {
 				return false;   // not in the scan round
 			}
 		}
 		return true;   // interval == 0 or still in the same scan round as when last time asked
 	}
+
+	/**
+	 * Returns the time after which the next scan round of this interface
+	 * starts
+	 * @return The next scan time or the current time if the interface
+	 * scans on every update (scan interval is 0)
+	 */
+	public double getNextScanTime() {
+		if (scanInterval > 0.0) {
+			return lastScanTime + scanInterval;
+		}
+		return SimClock.getTime();
+	}
 	
 	/**
 	 * Returns true if one of the connections of this interface is transferring
-	 * data // todo: how to know who is receiving or transmiting?
+	 * data
 	 * @return true if the interface transferring
 	 */
 	public boolean isTransferring() {
-		for (Connection c : this.connections) {
-			if (c.isTransferring()) {
-				return true;
-			}
-		}
-		return false;
+		return this.nrofTransfers > 0;
 	}
 
 	/**
 	 * Returns true if one of the connections of this interface is receiving
 	 * data
-	 * @return true if the interface transferring
+	 * @return true if the interface receiving
 	 */
 	public boolean isReceiving() {
-		for (Connection c : this.connections) {
-			if (c.isTransferring() && !c.isInitiator(host)) {
-				return true;
-			}
-		}
-		return false;
+		return this.nrofReceives > 0;
 	}
 
 	/**
 	 * Returns true if one of the connections of this interface is transmiting
 	 * data
-	 * @return true if the interface transferring
+	 * @return true if the interface transmiting
 	 */
 	public boolean isTransmiting() {
-		for (Connection c : this.connections) {
-			if (c.isTransferring() && c.isInitiator(host)) {
-				return true;
+		return this.nrofTransmits > 0;
+	}
+
+	/**
+	 * Returns the number of transfers where this interface sends a message
+	 * @return the number of transmissions
+	 */
+	public int getNrofTransmits() {
+		return this.nrofTransmits;
+	}
+
+	/**
+	 * Returns the number of transfers where this interface receives a message
+	 * @return the number of receptions
+	 */
+	public int getNrofReceives() {
+		return this.nrofReceives;
+	}
+
+	/**
+	 * Called by a connection of this interface when it starts transferring
+	 * a message. Updates the transfer counters of this interface and (if
+	 * this interface started transferring) of its neighbours.
+	 * @param con The connection
+	 * @param transmitting True if this interface sends the message, false if
+	 * it receives it
+	 */
+	protected void transferStarted(Connection con, boolean transmitting) {
+		this.nrofTransfers++;
+		if (transmitting) {
+			this.nrofTransmits++;
+		} else {
+			this.nrofReceives++;
+		}
+		this.neighbourhoodChanged = true;
+		if (this.nrofTransfers == 1) {
+			changeActiveNeighbours(1);
+		}
+		stateChanged();
+	}
+
+	/**
+	 * Called by a connection of this interface when its transfer ends
+	 * (finishes or is aborted).
+	 * @param con The connection
+	 * @param transmitting True if this interface sent the message, false if
+	 * it received it
+	 */
+	protected void transferEnded(Connection con, boolean transmitting) {
+		this.nrofTransfers--;
+		if (transmitting) {
+			this.nrofTransmits--;
+		} else {
+			this.nrofReceives--;
+		}
+		this.neighbourhoodChanged = true;
+		if (this.nrofTransfers == 0) {
+			changeActiveNeighbours(-1);
+			if (this.sleepPending) {
+				/* waited for the transfers; the connections are dropped
+				 * by update() if the interface disconnects when inactive */
+				this.sleepPending = false;
+				this.sleep = true;
+				invalidateActiveness();
 			}
 		}
-		return false;
+		stateChanged();
+	}
+
+	/**
+	 * Tells the energy model of the host that the state of this interface
+	 * has changed (see {@link EnergyModel#stateChanged(DTNHost)})
+	 */
+	protected void stateChanged() {
+		if (this.host != null) {
+			this.host.energyStateChanged();
+		}
+	}
+
+	/**
+	 * Changes the active neighbour count of all the interfaces this
+	 * interface is connected to
+	 * @param change The amount of change
+	 */
+	private void changeActiveNeighbours(int change) {
+		for (int i=0, n=this.connections.size(); i<n; i++) {
+			Connection con = this.connections.get(i);
+			if (con.isUp()) { /* down ones don't count anymore */
+				NetworkInterface other = con.getOtherInterface(this);
+				other.nrofActiveNeighbours += change;
+				other.neighbourhoodChanged = true;
+			}
+		}
+	}
+
+	/**
+	 * Called for both interfaces of a connection when it has been set up
+	 * @param con The connection
+	 */
+	protected void connectionUp(Connection con) {
+		if (con.getOtherInterface(this).nrofTransfers > 0) {
+			this.nrofActiveNeighbours++;
+			this.neighbourhoodChanged = true;
+		}
+	}
+
+	/**
+	 * Called for both interfaces of a connection when it goes down (before
+	 * the possible transfer of the connection is aborted)
+	 * @param con The connection
+	 */
+	protected void connectionDown(Connection con) {
+		if (con.getOtherInterface(this).nrofTransfers > 0) {
+			this.nrofActiveNeighbours--;
+			this.neighbourhoodChanged = true;
+		}
+		if (detector != null) {
+			detector.setForced(this, con.getOtherInterface(this), false);
+		}
+	}
+
+	/**
+	 * Marks the pair of this and another interface as one that is connected
+	 * without a scan (e.g., by a contact plan), so the contact detector
+	 * counts it in range while the interfaces are within range of each other.
+	 * The mark is removed when the connection goes down.
+	 * @param anotherInterface The other interface of the pair
+	 */
+	void forceContact(NetworkInterface anotherInterface) {
+		if (detector != null) {
+			detector.setForced(this, anotherInterface, true);
+		}
 	}
 
 	/**
@@ -569,10 +1029,12 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	protected void connect(Connection con, NetworkInterface anotherInterface) {
 
 		this.connections.add(con);
-		notifyConnectionListeners(CON_UP, anotherInterface.getHost());
+		notifyConnectionUp(anotherInterface.getHost());
 
 		// set up bidirectional connection
 		anotherInterface.getConnections().add(con);
+		connectionUp(con);
+		anotherInterface.connectionUp(con);
 
 		// inform routers about the connection
 		this.host.connectionUp(con);
@@ -588,7 +1050,9 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	protected void disconnect(Connection con, 
 			NetworkInterface anotherInterface) {
 		con.setUpState(false);
-		notifyConnectionListeners(CON_DOWN, anotherInterface.getHost());
+		connectionDown(con);
+		anotherInterface.connectionDown(con);
+		notifyConnectionDown(anotherInterface.getHost());
 
 		// tear down bidirectional connection
 		if (!anotherInterface.getConnections().remove(con)) {
@@ -600,6 +1064,7 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 
 		this.host.connectionDown(con);
 		anotherInterface.getHost().connectionDown(con);
+		ConnectionPool.getInstance().release(con);
 	}
 
 	/**
@@ -618,6 +1083,21 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 		return this.host.getLocation().distance(
 				anotherInterface.getHost().getLocation()) <= smallerRange;
 	}
+
+	/**
+	 * Returns true if another interface was within range of this interface
+	 * in the last contact detection round (see {@link ContactDetector}).
+	 * Falls back to {@link #isWithinRange(NetworkInterface)} if this interface
+	 * has no contact detector.
+	 * @param anotherInterface The another interface
+	 * @return True if the interface is within range, false if not
+	 */
+	protected boolean isInRange(NetworkInterface anotherInterface) {
+		if (detector == null) {
+			return isWithinRange(anotherInterface);
+		}
+		return detector.areInRange(this, anotherInterface);
+	}
 	
 	/**
 	 * Returns true if the given NetworkInterface is connected to this host. 
@@ -625,13 +1105,7 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	 * @return True if the two hosts are connected
 	 */
 	protected boolean isConnected(NetworkInterface netinterface) {
-		for (int i = 0; i < this.connections.size(); i++) {
-			if (this.connections.get(i).getOtherInterface(this) == 
-				netinterface) {
-				return true;
-			}
-		}
-		return false;
+		return this.connections.getConnection(netinterface) != null;
 	}
 	
 	/**
@@ -654,25 +1128,31 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	abstract public void update();
 
 	/**
-	 * Notifies all the connection listeners about a change in connections.
-	 * @param type Type of the change (e.g. {@link #CON_DOWN} )
+	 * Notifies all the connection listeners about a new connection.
 	 * @param otherHost The other host on the other end of the connection.
 	 */
-	private void notifyConnectionListeners(int type, DTNHost otherHost) {
+	private void notifyConnectionUp(DTNHost otherHost) {
 		if (this.cListeners == null) {
 			return;
 		}
-		for (ConnectionListener cl : this.cListeners) {
-			switch (type) {
-			case CON_UP:
-				cl.hostsConnected(this.getInterfaceType(), this.host, otherHost);
-				break;
-			case CON_DOWN:
-				cl.hostsDisconnected(this.getInterfaceType(), this.host, otherHost);
-				break;
-			default:
-				assert false : type;	// invalid type code
-			}
+		for (int i=0, n=this.cListeners.size(); i<n; i++) {
+			this.cListeners.get(i).hostsConnected(this.interfacetype,
+					this.host, otherHost);
+		}
+	}
+
+	/**
+	 * Notifies all the connection listeners about a connection that went
+	 * down.
+	 * @param otherHost The other host on the other end of the connection.
+	 */
+	private void notifyConnectionDown(DTNHost otherHost) {
+		if (this.cListeners == null) {
+			return;
+		}
+		for (int i=0, n=this.cListeners.size(); i<n; i++) {
+			this.cListeners.get(i).hostsDisconnected(this.interfacetype,
+					this.host, otherHost);
 		}
 	}
 	
@@ -686,6 +1166,11 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	public void moduleValueChanged(String key, Object newValue) {
 		if (key.equals(getInterfaceType()+"."+SCAN_INTERVAL_ID)) {
 			this.scanInterval = (Double)newValue;	
+			updateRoutingCost();
+			if (detector != null) {
+				detector.scheduleScan(this);
+			}
+			stateChanged();
 		}
 		/*else if (key.equals(getInterfaceType()+"."+SPEED_ID)) {
 			this.transmitSpeed = (Integer)newValue;	
@@ -717,6 +1202,60 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	 */
 	public abstract void createConnection(NetworkInterface anotherInterface);
 
+	/** 
+	 * Creates a constant bit-rate connection with the given speed to another
+	 * host. This method does not do any checks on whether the other node is
+	 * in range or active (used e.g. when replaying contact plans).
+	 * @param anotherInterface The interface to create the connection to
+	 * @param speed Transmit speed of the connection
+	 */
+	public void createConnection(NetworkInterface anotherInterface, int speed) {
+		if (!isConnected(anotherInterface) && (this != anotherInterface)) {
+			Connection con = newCBRConnection(anotherInterface, speed);
+			connect(con,anotherInterface);
+		}
+	}
+
+	/**
+	 * Returns a constant bit-rate connection from this interface to another
+	 * interface. A connection that has gone down is recycled if possible
+	 * (see {@link ConnectionPool}), otherwise a new one is created.
+	 * @param anotherInterface The interface to create the connection to
+	 * @param speed Transmit speed of the connection
+	 * @return The connection (not connected yet)
+	 */
+	protected Connection newCBRConnection(NetworkInterface anotherInterface,
+			int speed) {
+		ConnectionPool pool = ConnectionPool.getInstance();
+		Connection con = pool.obtain(speed, this.host, this,
+				anotherInterface.getHost(), anotherInterface);
+		if (con == null) {
+			con = new CBRConnection(this.host, this, 
+					anotherInterface.getHost(), anotherInterface, speed);
+			pool.created(con, speed);
+		}
+		return con;
+	}
+
+	/**
+	 * Returns a variable bit-rate connection from this interface to another
+	 * interface. A connection that has gone down is recycled if possible
+	 * (see {@link ConnectionPool}), otherwise a new one is created.
+	 * @param anotherInterface The interface to create the connection to
+	 * @return The connection (not connected yet)
+	 */
+	protected Connection newVBRConnection(NetworkInterface anotherInterface) {
+		ConnectionPool pool = ConnectionPool.getInstance();
+		Connection con = pool.obtain(ConnectionPool.VBR_KIND, this.host, this,
+				anotherInterface.getHost(), anotherInterface);
+		if (con == null) {
+			con = new VBRConnection(this.host, this, 
+					anotherInterface.getHost(), anotherInterface);
+			pool.created(con, ConnectionPool.VBR_KIND);
+		}
+		return con;
+	}
+
 
 	/**
 	 * Disconnect a connection between this and another host.
@@ -724,11 +1263,12 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	 * from this host
 	 */
 	public void destroyAllConnections() {
-		for (int i=0; i<this.connections.size(); i++) {
-			Connection con = this.connections.get(i);
+		while (!this.connections.isEmpty()) {
+			int last = this.connections.size() - 1;
+			Connection con = this.connections.get(last);
 			NetworkInterface anotherInterface = con.getOtherInterface(this);
 			disconnect(con,anotherInterface);
-			connections.remove(i);
+			connections.remove(last);
 		}
 	}
 	
@@ -738,28 +1278,25 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 	 * from this host
 	 */
 	public void destroyConnection(NetworkInterface anotherInterface) {
-		DTNHost anotherHost = anotherInterface.getHost();
-		for (int i=0; i < this.connections.size(); i++) {
-			if (this.connections.get(i).getOtherNode(this.host) == anotherHost && 
-			    anotherInterface.getInterfaceType().equals(interfacetype)){
-				removeConnectionByIndex(i, anotherInterface);
-			}
+		Connection con = this.connections.getConnection(anotherInterface);
+		if (con != null) {
+			removeConnection(con, anotherInterface);
 		}
 		// the connection didn't exist, do nothing
 	}
 
 	/**
-	 * Removes a connection by its position (index) in the connections array
-	 * of the interface
-	 * @param index The array index of the connection to be removed
+	 * Removes a connection from the connections of the interface
+	 * @param con The connection to be removed
 	 * @param anotherInterface The interface of the other host
 	 */
-	private void removeConnectionByIndex(int index, 
+	private void removeConnection(Connection con, 
 			NetworkInterface anotherInterface) {
-		Connection con = this.connections.get(index);
 		DTNHost anotherNode = anotherInterface.getHost();
 		con.setUpState(false);
-		notifyConnectionListeners(CON_DOWN, anotherNode);
+		connectionDown(con);
+		anotherInterface.connectionDown(con);
+		notifyConnectionDown(anotherNode);
 
 		// tear down bidirectional connection
 		if (!anotherInterface.getConnections().remove(con)) {
@@ -772,7 +1309,8 @@ abstract public class NetworkInterface implements ModuleCommunicationListener {
 		this.host.connectionDown(con);
 		anotherNode.connectionDown(con);
 
-		connections.remove(index);
+		connections.remove(con);
+		ConnectionPool.getInstance().release(con);
 	}
 
 	/**
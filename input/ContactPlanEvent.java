@@ -0,0 +1,72 @@
+/* 
+ * Copyright 2010 Aalto University, ComNet
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package input;
+
+import core.DTNHost;
+import core.World;
+
+/**
+ * A contact up or down event of a contact plan
+ * (see {@link ContactPlanReader}).
+ */
+public class ContactPlanEvent extends ExternalEvent {
+	private static final long serialVersionUID = 1L;
+	/** address of the host that initiated the contact */
+	protected int fromAddr;
+	/** address of the other host */
+	protected int toAddr;
+	/** interface type of the contact */
+	protected String interfaceId;
+	/** is this an up event */
+	protected boolean isUp;
+	/** speed of the connection */
+	protected int speed;
+
+	/**
+	 * Creates a new contact plan event.
+	 * @param from Address of the host that initiated the contact
+	 * @param to Address of the other host
+	 * @param interfaceId Interface type of the contact
+	 * @param up If true, the contact comes up, if false, it goes down
+	 * @param speed Speed of the connection
+	 * @param time Time when the event happens
+	 */
+	public ContactPlanEvent(int from, int to, String interfaceId,
+			boolean up, int speed, double time) {
+		super(time);
+		this.fromAddr = from;
+		this.toAddr = to;
+		this.interfaceId = interfaceId;
+		this.isUp = up;
+		this.speed = speed;
+	}
+
+	/**
+	 * Returns true if this is an up event
+	 * @return true if the contact comes up, false if it goes down
+	 */
+	public boolean isUp() {
+		return this.isUp;
+	}
+
+	@Override
+	public void processEvent(World world) {
+		DTNHost from = world.getNodeByAddress(this.fromAddr);
+		DTNHost to = world.getNodeByAddress(this.toAddr);
+
+		if (this.isUp) {
+			from.forceConnection(to, this.interfaceId, this.speed);
+		} else {
+			from.forceConnection(to, this.interfaceId, false);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "CONTACT " + (this.isUp ? "UP" : "DOWN") + " @" + this.time +
+				" " + this.fromAddr + "<->" + this.toAddr + " " +
+				this.interfaceId + " " + this.speed;
+	}
+}
@@ -0,0 +1,184 @@
+/* 
+ * Copyright 2010 Aalto University, ComNet
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package input;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import core.Settings;
+import core.SettingsError;
+
+/**
+ * External events queue that replays a binary contact plan written by
+ * {@link report.ContactPlanReport}. Every contact of the plan is started
+ * and ended at the recorded times with a constant bit-rate connection of the
+ * recorded speed. Use this with <CODE>Scenario.simulateConnections =
+ * false</CODE> and stationary movement to run only the routing of a
+ * scenario whose movement and connectivity were simulated once before.
+ * <P>The plan starts with the magic number {@link #PLAN_MAGIC} and the
+ * format version {@link #PLAN_VERSION} (ints). Each of the records that
+ * follow starts with a tag byte. A {@link #TYPE_RECORD} defines the next
+ * interface type id (starting from 0) and has the interface type name (UTF).
+ * A {@link #CONTACT_RECORD} has the interface type id (short), the addresses
+ * of the two hosts (ints), the up and down times (doubles) and the speed
+ * (int) of a contact.</P>
+ * <P>At the same time, the contacts that end go down before the new ones
+ * come up, except that a contact that comes up and goes down at the same
+ * time (e.g., one that was torn down in the same update it was made in)
+ * goes down after it has come up.</P>
+ */
+public class ContactPlanReader implements EventQueue {
+	/** Path of the contact plan file -setting id ({@value}) */
+	public static final String PLAN_FILE_S = "filePath";
+
+	/** Magic number in the beginning of a contact plan ({@value}) */
+	public static final int PLAN_MAGIC = 0x434F4E50;
+	/** Version of the contact plan format ({@value}) */
+	public static final int PLAN_VERSION = 1;
+	/** Tag of an interface type record ({@value}) */
+	public static final byte TYPE_RECORD = 1;
+	/** Tag of a contact record ({@value}) */
+	public static final byte CONTACT_RECORD = 2;
+
+	/** the contact up and down events in time order */
+	private List<ContactPlanEvent> events;
+	/** index of the next event to return */
+	private int nextEventIndex;
+	/** down events of the contacts that went down when they came up (only
+	 * used while the plan is read) */
+	private Set<ContactPlanEvent> instantDowns;
+
+	/**
+	 * Creates a new contact plan reader and reads the whole plan.
+	 * @param s Settings to read the plan file's path from
+	 */
+	public ContactPlanReader(Settings s) {
+		String filePath = s.getSetting(PLAN_FILE_S);
+		this.events = new ArrayList<ContactPlanEvent>();
+		this.nextEventIndex = 0;
+		this.instantDowns = Collections.newSetFromMap(
+				new IdentityHashMap<ContactPlanEvent, Boolean>());
+
+		try {
+			readPlan(new File(filePath));
+		} catch (IOException e) {
+			throw new SettingsError("Couldn't read contact plan '" +
+					filePath + "': " + e.getMessage());
+		}
+
+		/* stable sort: at the same time, contacts go down before new ones
+		 * come up, and the instant contacts go down after that */
+		Collections.sort(this.events, new Comparator<ContactPlanEvent>() {
+			public int compare(ContactPlanEvent e1, ContactPlanEvent e2) {
+				if (e1.getTime() != e2.getTime()) {
+					return e1.getTime() < e2.getTime() ? -1 : 1;
+				}
+				return getPhase(e1) - getPhase(e2);
+			}
+		});
+		this.instantDowns = null;
+	}
+
+	/**
+	 * Returns the phase of an event among the events of the same time:
+	 * 0 for the downs of contacts that came up earlier, 1 for ups and 2 for
+	 * the downs of contacts that came up at the same time
+	 * @param e The event
+	 * @return The phase of the event
+	 */
+	private int getPhase(ContactPlanEvent e) {
+		if (e.isUp()) {
+			return 1;
+		}
+		return this.instantDowns.contains(e) ? 2 : 0;
+	}
+
+	/**
+	 * Reads the contact records of a plan file
+	 * @param planFile The plan file
+	 * @throws IOException if the plan could not be read
+	 */
+	private void readPlan(File planFile) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(planFile)));
+		List<String> types = new ArrayList<String>();
+
+		try {
+			if (in.readInt() != PLAN_MAGIC) {
+				throw new IOException("Not a contact plan");
+			}
+			int version = in.readInt();
+			if (version != PLAN_VERSION) {
+				throw new IOException("Unsupported plan version " + version);
+			}
+
+			while (true) {
+				int tag;
+				try {
+					tag = in.readByte();
+				} catch (EOFException e) {
+					break; /* end of plan */
+				}
+
+				if (tag == TYPE_RECORD) {
+					types.add(in.readUTF());
+				} else if (tag == CONTACT_RECORD) {
+					String type = types.get(in.readShort());
+					int from = in.readInt();
+					int to = in.readInt();
+					double upTime = in.readDouble();
+					double downTime = in.readDouble();
+					int speed = in.readInt();
+
+					this.events.add(new ContactPlanEvent(from, to, type,
+							true, speed, upTime));
+					ContactPlanEvent down = new ContactPlanEvent(from, to,
+							type, false, speed, downTime);
+					if (downTime <= upTime) {
+						this.instantDowns.add(down);
+					}
+					this.events.add(down);
+				} else {
+					throw new IOException("Invalid record tag " + tag);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the next contact up or down event
+	 * @see input.EventQueue#nextEvent()
+	 */
+	public ExternalEvent nextEvent() {
+		if (this.nextEventIndex >= this.events.size()) {
+			return new ExternalEvent(Double.MAX_VALUE);
+		}
+		return this.events.get(this.nextEventIndex++);
+	}
+
+	/**
+	 * Returns the time of the next event
+	 * @see input.EventQueue#nextEventsTime()
+	 */
+	public double nextEventsTime() {
+		if (this.nextEventIndex >= this.events.size()) {
+			return Double.MAX_VALUE;
+		}
+		return this.events.get(this.nextEventIndex).getTime();
+	}
+
+}
@@ -0,0 +1,772 @@
+/* 
+ * Copyright 2010 Aalto University, ComNet
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package interfaces;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import core.Coord;
+import core.DTNHost;
+import core.DTNSim;
+import core.NetworkInterface;
+import core.SimClock;
+import core.SimScenario;
+import util.LongObjectMap;
+import util.TimingWheel;
+
+/**
+ * World-level contact detection for the network interfaces of one type.
+ * Once per simulation update the detector refreshes the locations of all the
+ * interfaces in the connectivity optimizer and examines every nearby pair of
+ * interfaces only once. The pairs that came into range are then connected and
+ * the ones that went out of range are disconnected. The interfaces only have
+ * to take care of their own state (activeness, transmission speeds etc.).
+ * <P>New pairs can only connect when either of the interfaces is scanning,
+ * so only the interfaces whose scan round is due look for new neighbours.
+ * The detector keeps a calendar (timing wheel) of the next scan times of the
+ * interfaces and polls only the due ones on each update. An interface that
+ * is not active is put in the calendar at the time it can be switched on
+ * again (see {@link NetworkInterface#getNextActiveTime(double)}), or when it
+ * is woken up. The known pairs (found by scans or predictions) are checked
+ * on every update until they go out of range. The pairs that were connected
+ * without the detector (e.g., by a contact plan) are kept in a separate set
+ * of forced pairs and count as in range while they are within range.</P>
+ * <P>If a skin distance is given, every interface also keeps a list of the
+ * interfaces that were within transmit range + skin when the list was
+ * (re)built and only those are checked on each update. The list of an
+ * interface (and its location in the optimizer) is rebuilt only when it has
+ * moved more than half of the skin since the last rebuild, so two interfaces
+ * that are not in each others' lists can not have come within range.</P>
+ * <P>If contact prediction is enabled, the detector also solves when the
+ * examined pairs will come into or go out of range before the next update,
+ * assuming that the hosts keep moving towards their current waypoints with
+ * their current speeds. The contacts are then started and ended at those
+ * exact times using updates scheduled to the world. Between the regular
+ * updates the host locations are not up to date, so only the predicted
+ * changes are made then. A predicted contact is started between two
+ * active interfaces without a scan (like a contact of a contact plan), so
+ * it doesn't use up or shift the scan rounds of the interfaces. To not miss contacts of hosts that are further
+ * away than the transmit range at the update, the skin distance should be
+ * at least the distance two hosts can close in one update interval.</P>
+ */
+public class ContactDetector {
+	/** Detectors of each interface type (keyed by the type id) */
+	private static HashMap<Integer, ContactDetector> detectors;
+	/** Number of slots in the scan calendars ({@value}) */
+	public static final int CALENDAR_SLOTS = 1024;
+
+	static {
+		DTNSim.registerForReset(ContactDetector.class.getCanonicalName());
+		reset();
+	}
+
+	/** the optimizer used for finding the nearby interfaces */
+	private ConnectivityOptimizer optimizer;
+	/** the interfaces of this type in the order they were added */
+	private List<NetworkInterface> interfaces;
+	/** the neighbourhood of each interface */
+	private HashMap<NetworkInterface, Neighbourhood> neighbourhoods;
+	/** pairs that came into range in the last detection round (a0,b0,a1..) */
+	private List<NetworkInterface> upPairs;
+	/** pairs that went out of range in the last detection round (a0,b0,a1..) */
+	private List<NetworkInterface> downPairs;
+	/** sim time of the last detection round */
+	private double lastDetection;
+	/** movement epoch of the last detection round (see
+	 * {@link DTNHost#getMovementEpoch()}) */
+	private long lastEpoch;
+	/** skin distance of the neighbour lists (0 if not used) */
+	private double skin;
+	/** interfaces whose neighbour lists are rebuilt in this round */
+	private List<NetworkInterface> rebuilds;
+	/** are the contact times predicted */
+	private boolean predict;
+	/** update interval of the world (used with predictions) */
+	private double updateInterval;
+	/** sim time of the next regular detection round (used with predictions) */
+	private double nextPass;
+	/** predicted contact changes before the next regular round */
+	private PriorityQueue<PredictedContact> predictions;
+	/** number of predictions made (for ordering the ones at the same time) */
+	private int nrofPredictions;
+	/** times of the world updates scheduled for the predictions (keyed by
+	 * the bits of the times) */
+	private LongObjectMap<Boolean> predictionUpdates;
+	/** predictions that have been applied or dropped, for reuse */
+	private List<PredictedContact> freePredictions;
+	/** velocity of the first host of a pair (reused in predictions) */
+	private double[] velocityA;
+	/** velocity of the second host of a pair (reused in predictions) */
+	private double[] velocityB;
+	/** next scan times of the interfaces (created on the first update) */
+	private TimingWheel<NetworkInterface> scanCalendar;
+	/** interfaces that are scanning on this update */
+	private List<NetworkInterface> scanners;
+	/** interfaces whose scan round was due on this update */
+	private List<NetworkInterface> dueScans;
+
+	/**
+	 * Resets the static fields of the class
+	 */
+	public static void reset() {
+		detectors = new HashMap<Integer, ContactDetector>();
+	}
+
+	/**
+	 * Creates a new contact detector.
+	 * @param optimizer The connectivity optimizer of the interface type
+	 * @param skin Skin distance of the neighbour lists (0 for no lists)
+	 * @param predict Should the contact times be predicted
+	 */
+	private ContactDetector(ConnectivityOptimizer optimizer, double skin,
+			boolean predict) {
+		this.optimizer = optimizer;
+		this.interfaces = new ArrayList<NetworkInterface>();
+		this.neighbourhoods = new HashMap<NetworkInterface, Neighbourhood>();
+		this.upPairs = new ArrayList<NetworkInterface>();
+		this.downPairs = new ArrayList<NetworkInterface>();
+		this.lastDetection = -1;
+		this.lastEpoch = -1;
+		this.skin = skin;
+		this.rebuilds = new ArrayList<NetworkInterface>();
+		this.predict = predict;
+		this.updateInterval = 0;
+		this.nextPass = -1;
+		this.predictions = new PriorityQueue<PredictedContact>();
+		this.predictionUpdates = new LongObjectMap<Boolean>();
+		this.nrofPredictions = 0;
+		this.freePredictions = new ArrayList<PredictedContact>();
+		this.velocityA = new double[2];
+		this.velocityB = new double[2];
+		this.scanCalendar = null;
+		this.scanners = new ArrayList<NetworkInterface>();
+		this.dueScans = new ArrayList<NetworkInterface>();
+	}
+
+	/**
+	 * Returns the contact detector of an interface type. Only one detector
+	 * is created for each type (key).
+	 * @param key Unique key of the interface type
+	 * @param optimizer The connectivity optimizer of the interface type
+	 * @param skin Skin distance of the neighbour lists (0 for no lists)
+	 * @param predict Should the contact times be predicted
+	 * @return The contact detector of the interface type
+	 */
+	public static ContactDetector ContactDetectorFactory(int key,
+			ConnectivityOptimizer optimizer, double skin, boolean predict) {
+		ContactDetector cd = detectors.get(key);
+		if (cd == null) {
+			cd = new ContactDetector(optimizer, skin, predict);
+			detectors.put(key, cd);
+		}
+		return cd;
+	}
+
+	/**
+	 * Adds a network interface to the detector
+	 * @param ni The interface to add
+	 */
+	public void addInterface(NetworkInterface ni) {
+		if (this.neighbourhoods.containsKey(ni)) {
+			return; /* already added */
+		}
+		this.neighbourhoods.put(ni, new Neighbourhood(this.interfaces.size()));
+		this.interfaces.add(ni);
+		scheduleScan(ni);
+	}
+
+	/**
+	 * Schedules the next scan round of an interface to the scan calendar.
+	 * Must be called if the scan interval of the interface changes or if
+	 * the interface is woken up.
+	 * @param ni The interface
+	 */
+	public void scheduleScan(NetworkInterface ni) {
+		Neighbourhood nh = this.neighbourhoods.get(ni);
+		if (this.scanCalendar == null || nh == null) {
+			return; /* all are scheduled when the calendar is created */
+		}
+		double time = ni.getNextScanTime();
+		if (time != nh.scheduledScan) {
+			nh.scheduledScan = time;
+			this.scanCalendar.add(ni, time);
+		}
+	}
+
+	/**
+	 * Detects the contacts of all the interfaces and connects/disconnects
+	 * the pairs whose state changed. Does the detection only once per
+	 * simulation time and host locations, so every interface of the type
+	 * can call this from its update method. The world may update the hosts
+	 * both before and after moving them at the same time (e.g., when an
+	 * event is due at the time of a regular update), so the detection is
+	 * done again if the hosts have moved since the last round
+	 * (see {@link DTNHost#getMovementEpoch()}). The interfaces whose scan
+	 * round started on the first round of a time keep scanning on the
+	 * rounds after it.
+	 */
+	public void update() {
+		double simTime = SimClock.getTime();
+		long epoch = DTNHost.getMovementEpoch();
+		boolean again = (simTime == this.lastDetection);
+		if (again && epoch == this.lastEpoch) {
+			return; /* already done for this update */
+		}
+		this.lastDetection = simTime;
+		this.lastEpoch = epoch;
+
+		if (this.predict) {
+			if (simTime < this.nextPass && !again) {
+				/* host locations are not up to date between the updates */
+				applyPredictions(simTime);
+				return;
+			}
+			if (this.updateInterval == 0) {
+				this.updateInterval =
+					SimScenario.getInstance().getUpdateInterval();
+			}
+			while (!this.predictions.isEmpty()) {
+				recyclePrediction(this.predictions.poll());
+			}
+			this.predictionUpdates.clear();
+			this.nextPass = simTime + this.updateInterval;
+		}
+
+		updateScans(simTime, again);
+		if (this.skin > 0) {
+			detectListContacts();
+		} else {
+			detectContacts();
+		}
+		applyContacts();
+	}
+
+	/**
+	 * Polls the interfaces whose scan round is due from the scan calendar,
+	 * collects the ones that are scanning on this update and schedules
+	 * their next scan rounds.
+	 * @param simTime Current simulation time
+	 * @param again True if the scans of this time were already updated
+	 * (the interfaces that are scanning stay in the list)
+	 */
+	private void updateScans(double simTime, boolean again) {
+		if (this.scanCalendar == null) {
+			double tickLength = SimScenario.getInstance().getUpdateInterval();
+			this.scanCalendar = new TimingWheel<NetworkInterface>(
+					tickLength > 0 ? tickLength : 1, CALENDAR_SLOTS);
+			for (NetworkInterface ni : this.interfaces) {
+				scheduleScan(ni);
+			}
+		}
+
+		if (!again) {
+			this.scanners.clear();
+		}
+		this.dueScans.clear();
+		this.scanCalendar.poll(simTime, this.dueScans);
+
+		for (NetworkInterface ni : this.dueScans) {
+			Neighbourhood nh = this.neighbourhoods.get(ni);
+			if (nh.scheduledScan > simTime || nh.scanCheckTime == simTime) {
+				continue; /* rescheduled or already checked */
+			}
+			nh.scanCheckTime = simTime;
+			nh.scheduledScan = -1;
+			double next = ni.getNextScanTime();
+			if (ni.updateScanning()) {
+				nh.scanRoundTime = simTime;
+				this.scanners.add(ni);
+				next = ni.getNextScanTime();
+			} else if (!ni.isActive()) {
+				/* due again when it can be switched on */
+				next = Math.max(next, ni.getNextActiveTime(simTime));
+				if (next == Double.MAX_VALUE) {
+					continue; /* woken up or never on again */
+				}
+			}
+			nh.scheduledScan = Math.max(next, simTime);
+			this.scanCalendar.add(ni, nh.scheduledScan);
+		}
+	}
+
+	/**
+	 * Returns true if the interface's scan round started on this update
+	 */
+	private boolean isScanning(Neighbourhood nh) {
+		return nh.scanRoundTime == this.lastDetection;
+	}
+
+	/**
+	 * Returns true if the two interfaces were within range of each other in
+	 * the last detection round, or if they are a forced pair (see
+	 * {@link #setForced(NetworkInterface, NetworkInterface, boolean)}) that
+	 * is within range now.
+	 * @param a The first interface
+	 * @param b The second interface
+	 * @return True if the interfaces are within range, false if not
+	 */
+	public boolean areInRange(NetworkInterface a, NetworkInterface b) {
+		Neighbourhood nh = this.neighbourhoods.get(a);
+		if (nh == null) {
+			return false;
+		}
+		if (nh.inRange.contains(b)) {
+			return true;
+		}
+		return nh.forced != null && nh.forced.contains(b) &&
+			areWithinRange(a, b);
+	}
+
+	/**
+	 * Marks or unmarks a pair of interfaces as a forced pair, i.e., one that
+	 * was connected without the detector finding it (e.g., by a contact
+	 * plan). Forced pairs are not checked by the detection rounds.
+	 * @param a The first interface
+	 * @param b The second interface
+	 * @param forced True to mark the pair, false to unmark it
+	 */
+	public void setForced(NetworkInterface a, NetworkInterface b,
+			boolean forced) {
+		Neighbourhood nh = this.neighbourhoods.get(a);
+		Neighbourhood onh = this.neighbourhoods.get(b);
+		if (nh == null || onh == null) {
+			return;
+		}
+		if (forced) {
+			if (nh.forced == null) {
+				nh.forced = new HashSet<NetworkInterface>();
+			}
+			if (onh.forced == null) {
+				onh.forced = new HashSet<NetworkInterface>();
+			}
+			nh.forced.add(b);
+			onh.forced.add(a);
+		} else if (nh.forced != null && nh.forced.remove(b)) {
+			onh.forced.remove(a);
+		}
+	}
+
+	/**
+	 * Returns the pairs that came into range in the last detection round.
+	 * Every two consecutive interfaces of the list form a pair.
+	 * @return The pairs that came into range
+	 */
+	public List<NetworkInterface> getUpPairs() {
+		return this.upPairs;
+	}
+
+	/**
+	 * Returns the pairs that went out of range in the last detection round.
+	 * Every two consecutive interfaces of the list form a pair.
+	 * @return The pairs that went out of range
+	 */
+	public List<NetworkInterface> getDownPairs() {
+		return this.downPairs;
+	}
+
+	/**
+	 * Finds the pairs that came into range and the pairs that went out of
+	 * range since the last detection round. Every pair is examined once.
+	 */
+	private void detectContacts() {
+		this.upPairs.clear();
+		this.downPairs.clear();
+
+		for (NetworkInterface ni : this.interfaces) {
+			this.optimizer.updateLocation(ni);
+		}
+
+		/* first the known pairs that went out of range */
+		for (NetworkInterface ni : this.interfaces) {
+			Neighbourhood nh = this.neighbourhoods.get(ni);
+			for (NetworkInterface other : nh.inRange) {
+				if (nh.index > this.neighbourhoods.get(other).index) {
+					continue; /* examined already */
+				}
+				if (areWithinRange(ni, other)) {
+					predict(ni, other, true);
+				} else {
+					this.downPairs.add(ni);
+					this.downPairs.add(other);
+				}
+			}
+		}
+		for (int i=0, n=this.downPairs.size(); i<n; i+=2) {
+			NetworkInterface a = this.downPairs.get(i);
+			NetworkInterface b = this.downPairs.get(i+1);
+			this.neighbourhoods.get(a).inRange.remove(b);
+			this.neighbourhoods.get(b).inRange.remove(a);
+		}
+
+		/* then the new pairs that came into range of the scanning ones */
+		for (NetworkInterface ni : this.scanners) {
+			Neighbourhood nh = this.neighbourhoods.get(ni);
+			for (NetworkInterface other : this.optimizer.getNearInterfaces(ni)) {
+				Neighbourhood onh = this.neighbourhoods.get(other);
+				if (onh == null || other == ni || nh.inRange.contains(other)
+						|| (isScanning(onh) && onh.index < nh.index)) {
+					continue; /* self, other type, or examined already */
+				}
+				if (areWithinRange(ni, other)) {
+					nh.inRange.add(other);
+					onh.inRange.add(ni);
+					this.upPairs.add(ni);
+					this.upPairs.add(other);
+					predict(ni, other, true);
+				} else {
+					predict(ni, other, false);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the pairs that came into range and the pairs that went out of
+	 * range using the neighbour lists. First rebuilds the lists of the
+	 * interfaces that have moved more than half of the skin and then checks
+	 * every pair in the lists once.
+	 */
+	private void detectListContacts() {
+		this.upPairs.clear();
+		this.downPairs.clear();
+		this.rebuilds.clear();
+
+		/* locations in the optimizer are updated only on rebuilds */
+		for (NetworkInterface ni : this.interfaces) {
+			Neighbourhood nh = this.neighbourhoods.get(ni);
+			Coord loc = ni.getLocation();
+			double maxDist = this.skin / 2;
+			if (this.predict) {
+				/* the lists must stay valid until the next regular round */
+				maxDist -= ni.getHost().getSpeed() * this.updateInterval;
+			}
+			if (nh.listLocation == null || maxDist < 0 ||
+					distanceSq(loc, nh.listLocation) > maxDist * maxDist) {
+				nh.listLocation = loc.clone();
+				this.optimizer.updateLocation(ni);
+				this.rebuilds.add(ni);
+			}
+		}
+
+		for (NetworkInterface ni : this.rebuilds) {
+			Neighbourhood nh = this.neighbourhoods.get(ni);
+			for (NetworkInterface other : nh.candidates) {
+				this.neighbourhoods.get(other).candidates.remove(ni);
+			}
+			nh.candidates.clear();
+
+			for (NetworkInterface other : this.optimizer.getNearInterfaces(ni)) {
+				Neighbourhood onh = this.neighbourhoods.get(other);
+				if (onh == null || other == ni) {
+					continue; /* other type or self */
+				}
+				double range = Math.min(ni.getTransmitRange(),
+						other.getTransmitRange()) + this.skin;
+				if (distanceSq(nh.listLocation, onh.listLocation) <=
+						range * range) {
+					nh.candidates.add(other);
+					onh.candidates.add(ni);
+				}
+			}
+		}
+
+		/* then the known pairs that went out of range */
+		for (NetworkInterface ni : this.interfaces) {
+			Neighbourhood nh = this.neighbourhoods.get(ni);
+			for (NetworkInterface other : nh.inRange) {
+				if (nh.index > this.neighbourhoods.get(other).index) {
+					continue; /* examined already */
+				}
+				boolean isInRange = areWithinRange(ni, other);
+				if (!isInRange) {
+					this.downPairs.add(ni);
+					this.downPairs.add(other);
+				}
+				predict(ni, other, isInRange);
+			}
+		}
+
+		/* and the new pairs in the lists of the scanning ones */
+		for (NetworkInterface ni : this.scanners) {
+			Neighbourhood nh = this.neighbourhoods.get(ni);
+			for (NetworkInterface other : nh.candidates) {
+				Neighbourhood onh = this.neighbourhoods.get(other);
+				if (nh.inRange.contains(other) ||
+						(isScanning(onh) && onh.index < nh.index)) {
+					continue; /* known or examined already */
+				}
+				boolean isInRange = areWithinRange(ni, other);
+				if (isInRange) {
+					this.upPairs.add(ni);
+					this.upPairs.add(other);
+				}
+				predict(ni, other, isInRange);
+			}
+		}
+
+		for (int i=0, n=this.downPairs.size(); i<n; i+=2) {
+			NetworkInterface a = this.downPairs.get(i);
+			NetworkInterface b = this.downPairs.get(i+1);
+			this.neighbourhoods.get(a).inRange.remove(b);
+			this.neighbourhoods.get(b).inRange.remove(a);
+		}
+		for (int i=0, n=this.upPairs.size(); i<n; i+=2) {
+			NetworkInterface a = this.upPairs.get(i);
+			NetworkInterface b = this.upPairs.get(i+1);
+			this.neighbourhoods.get(a).inRange.add(b);
+			this.neighbourhoods.get(b).inRange.add(a);
+		}
+	}
+
+	/**
+	 * Predicts when a pair of interfaces comes into or goes out of range
+	 * before the next regular detection round and schedules world updates
+	 * for those times. The hosts are assumed to move straight towards their
+	 * current waypoints with their current speeds, so the prediction is
+	 * made only until either of them reaches its waypoint. Does nothing if
+	 * the predictions are not enabled.
+	 * @param a The first interface
+	 * @param b The second interface
+	 * @param inRange Are the interfaces within range now
+	 */
+	private void predict(NetworkInterface a, NetworkInterface b,
+			boolean inRange) {
+		if (!this.predict) {
+			return;
+		}
+		double now = this.lastDetection;
+		double horizon = this.nextPass - now;
+		horizon = Math.min(horizon, a.getHost().getVelocity(this.velocityA));
+		horizon = Math.min(horizon, b.getHost().getVelocity(this.velocityB));
+		if (horizon <= 0) {
+			return; /* movement not known */
+		}
+
+		/* solve |p + w*t| = range for the relative location p and speed w */
+		Coord la = a.getLocation();
+		Coord lb = b.getLocation();
+		double px = la.getX() - lb.getX();
+		double py = la.getY() - lb.getY();
+		double wx = this.velocityA[0] - this.velocityB[0];
+		double wy = this.velocityA[1] - this.velocityB[1];
+		double range = Math.min(a.getTransmitRange(), b.getTransmitRange());
+
+		double qa = wx*wx + wy*wy;
+		if (qa == 0) {
+			return; /* no relative movement; no changes */
+		}
+		double qb = 2 * (px*wx + py*wy);
+		double qc = px*px + py*py - range*range;
+		double disc = qb*qb - 4*qa*qc;
+		if (disc < 0) {
+			return; /* never within range */
+		}
+		double sqrtDisc = Math.sqrt(disc);
+		double enter = (-qb - sqrtDisc) / (2*qa);
+		double leave = (-qb + sqrtDisc) / (2*qa);
+
+		if (!inRange && enter > 0 && enter < horizon) {
+			addPrediction(now + enter, a, b, true);
+		}
+		if ((inRange || enter > 0) && leave > 0 && leave < horizon) {
+			addPrediction(now + leave, a, b, false);
+		}
+	}
+
+	/**
+	 * Adds a predicted contact change and schedules a world update for it
+	 * (once for all the changes at the same time). Changes that would fall
+	 * on the current or next regular round are left for the regular
+	 * detection.
+	 * @param time Sim time of the change
+	 * @param a The first interface
+	 * @param b The second interface
+	 * @param up True if the interfaces come into range, false if they go
+	 * out of range
+	 */
+	private void addPrediction(double time, NetworkInterface a,
+			NetworkInterface b, boolean up) {
+		if (time <= this.lastDetection || time >= this.nextPass) {
+			return;
+		}
+		PredictedContact pc;
+		if (this.freePredictions.isEmpty()) {
+			pc = new PredictedContact();
+		} else {
+			pc = this.freePredictions.remove(this.freePredictions.size() - 1);
+		}
+		pc.set(time, this.nrofPredictions++, a, b, up);
+		this.predictions.add(pc);
+		if (this.predictionUpdates.put(Double.doubleToLongBits(time),
+				Boolean.TRUE) == null) {
+			SimScenario.getInstance().getWorld().scheduleUpdate(time);
+		}
+	}
+
+	/**
+	 * Puts a prediction that has been applied or dropped to the free
+	 * predictions
+	 * @param pc The prediction
+	 */
+	private void recyclePrediction(PredictedContact pc) {
+		pc.a = null;
+		pc.b = null;
+		this.freePredictions.add(pc);
+	}
+
+	/**
+	 * Makes the predicted contact changes that are due and connects or
+	 * disconnects the pairs whose state changed.
+	 * @param simTime Current simulation time
+	 */
+	private void applyPredictions(double simTime) {
+		this.upPairs.clear();
+		this.downPairs.clear();
+
+		while (!this.predictions.isEmpty() &&
+				this.predictions.peek().time <= simTime) {
+			PredictedContact pc = this.predictions.poll();
+			Neighbourhood nh = this.neighbourhoods.get(pc.a);
+			Neighbourhood onh = this.neighbourhoods.get(pc.b);
+			boolean wasInRange = nh.inRange.contains(pc.b);
+			if (pc.up && !wasInRange) {
+				nh.inRange.add(pc.b);
+				onh.inRange.add(pc.a);
+				this.upPairs.add(pc.a);
+				this.upPairs.add(pc.b);
+			} else if (!pc.up && wasInRange) {
+				nh.inRange.remove(pc.b);
+				onh.inRange.remove(pc.a);
+				this.downPairs.add(pc.a);
+				this.downPairs.add(pc.b);
+			}
+			recyclePrediction(pc);
+		}
+
+		for (int i=0, n=this.downPairs.size(); i<n; i+=2) {
+			this.downPairs.get(i).destroyConnection(this.downPairs.get(i+1));
+		}
+		/* the pairs are within range by the prediction; connect them
+		 * without a scan, which would use up the next scan round */
+		for (int i=0, n=this.upPairs.size(); i<n; i+=2) {
+			NetworkInterface a = this.upPairs.get(i);
+			NetworkInterface b = this.upPairs.get(i+1);
+			if (a.isActive() && b.isActive()) {
+				a.createConnection(b);
+			}
+		}
+	}
+
+	/**
+	 * Disconnects the pairs that went out of range and lets the interfaces
+	 * try to connect to the ones within range they're not connected to yet.
+	 */
+	private void applyContacts() {
+		for (int i=0, n=this.downPairs.size(); i<n; i+=2) {
+			this.downPairs.get(i).destroyConnection(this.downPairs.get(i+1));
+		}
+
+		/* connect() checks the other end and existing connections */
+		for (NetworkInterface ni : this.scanners) {
+			for (NetworkInterface other : this.neighbourhoods.get(ni).inRange) {
+				ni.connect(other);
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the interfaces are within the (smaller) radio range of
+	 * each other. Compares the squared distance to avoid the square root.
+	 * @param a The first interface
+	 * @param b The second interface
+	 * @return True if the interfaces are within range, false if not
+	 */
+	private boolean areWithinRange(NetworkInterface a, NetworkInterface b) {
+		double range = Math.min(a.getTransmitRange(), b.getTransmitRange());
+
+		return distanceSq(a.getLocation(), b.getLocation()) <= range*range;
+	}
+
+	/**
+	 * Returns the squared distance between two locations
+	 * @param c1 The first location
+	 * @param c2 The second location
+	 * @return The squared distance
+	 */
+	private static double distanceSq(Coord c1, Coord c2) {
+		double dx = c1.getX() - c2.getX();
+		double dy = c1.getY() - c2.getY();
+
+		return dx*dx + dy*dy;
+	}
+
+	/**
+	 * A predicted change in the contact state of a pair of interfaces
+	 */
+	private class PredictedContact implements Comparable<PredictedContact> {
+		/** sim time of the change */
+		private double time;
+		/** order number of the prediction */
+		private int order;
+		private NetworkInterface a;
+		private NetworkInterface b;
+		/** true if the pair comes into range, false if it goes out of range */
+		private boolean up;
+
+		private void set(double time, int order, NetworkInterface a,
+				NetworkInterface b, boolean up) {
+			this.time = time;
+			this.order = order;
+			this.a = a;
+			this.b = b;
+			this.up = up;
+		}
+
+		public int compareTo(PredictedContact other) {
+			if (this.time != other.time) {
+				return this.time < other.time ? -1 : 1;
+			}
+			return this.order - other.order;
+		}
+	}
+
+	/**
+	 * Contact state of a single interface
+	 */
+	private class Neighbourhood {
+		/** order number of the interface (for examining pairs only once) */
+		private final int index;
+		/** known interfaces within range (in the order they came) */
+		private LinkedHashSet<NetworkInterface> inRange;
+		/** interfaces within range + skin at the last list rebuild */
+		private LinkedHashSet<NetworkInterface> candidates;
+		/** interfaces of the forced pairs (null if there are none) */
+		private HashSet<NetworkInterface> forced;
+		/** location of the interface at the last list rebuild */
+		private Coord listLocation;
+		/** next scan time the interface is in the calendar with */
+		private double scheduledScan;
+		/** sim time when the scanning of the interface was last checked */
+		private double scanCheckTime;
+		/** sim time of the update when the interface last started scanning */
+		private double scanRoundTime;
+
+		private Neighbourhood(int index) {
+			this.index = index;
+			this.inRange = new LinkedHashSet<NetworkInterface>();
+			this.candidates = new LinkedHashSet<NetworkInterface>();
+			this.forced = null;
+			this.listLocation = null;
+			this.scheduledScan = -1;
+			this.scanCheckTime = -1;
+			this.scanRoundTime = -1;
+		}
+	}
+
+}
@@ -4,17 +4,31 @@
  */
 package interfaces;
 
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.HashMap;
+
 import core.Connection;
+import core.Coord;
+import core.DTNHost;
 import core.NetworkInterface;
 import core.Settings;
-import core.VBRConnection;
+import core.SimClock;
 
 /**
  * A Network Interface that that takes in to account he distance from the
  * other (connected) interface when determining the capacity of the links.
  * The distance-dependent transmission speeds are given as comma-separated
  * values using setting {@link this#TRANSMIT_SPEEDS_S}.
+ * <P>The speed to each other interface is cached for the current update
+ * and host locations (see {@link DTNHost#getMovementEpoch()}).
+ * If the movement of both hosts is known (they move towards their waypoints
+ * with constant speeds or pause), the cached rate profile also knows when
+ * the distance moves to another interpolation step, or out of or into the
+ * range, and the profile is only recomputed from the locations at those
+ * breakpoints or when either of the hosts changes its movement (including
+ * when its movement is deactivated or activated). Within a step whose two
+ * speeds are equal the speed is constant; within other steps it is still
+ * interpolated from the distance the profile gives for each update.</P>
  */
 public class DistanceCapacityInterface extends NetworkInterface {
 	
@@ -28,6 +42,14 @@ public class DistanceCapacityInterface extends NetworkInterface {
 	public static final String TRANSMIT_SPEEDS_S = "transmitSpeeds";
 	
 	protected final int[] transmitSpeeds;
+	/** cached rate profiles to the other interfaces */
+	private HashMap<NetworkInterface, RateProfile> rateProfiles;
+	/** profiles of the connections that went down, for reuse */
+	private ArrayList<RateProfile> freeProfiles;
+	/** velocity of this host (reused in the rate profiles) */
+	private double[] velocityA;
+	/** velocity of the other host (reused in the rate profiles) */
+	private double[] velocityB;
 	
 	/**
 	 * Reads the interface settings from the Settings file
@@ -35,6 +57,7 @@ public class DistanceCapacityInterface extends NetworkInterface {
 	public DistanceCapacityInterface(Settings s)	{
 		super(s);
 		transmitSpeeds = s.getCsvInts(TRANSMIT_SPEEDS_S);
+		initRateProfiles();
 	}
 		
 	/**
@@ -44,6 +67,17 @@ public class DistanceCapacityInterface extends NetworkInterface {
 	public DistanceCapacityInterface(DistanceCapacityInterface ni) {
 		super(ni);
 		transmitSpeeds = ni.transmitSpeeds;
+		initRateProfiles();
+	}
+
+	/**
+	 * Initializes the rate profile cache
+	 */
+	private void initRateProfiles() {
+		this.rateProfiles = new HashMap<NetworkInterface, RateProfile>();
+		this.freeProfiles = new ArrayList<RateProfile>();
+		this.velocityA = new double[2];
+		this.velocityB = new double[2];
 	}
 
 	public NetworkInterface replicate()	{
@@ -57,11 +91,10 @@ public class DistanceCapacityInterface extends NetworkInterface {
 	 */
 	public void connect(NetworkInterface anotherInterface) {
 		if (updateScanning() && this != anotherInterface 
-				&& anotherInterface.getHost().isRadioActiveByIfaceType(this.getInterfaceType())
-				&& isWithinRange(anotherInterface)
+				&& anotherInterface.getHost().isRadioActiveByIfaceType(this.getInterfaceTypeId())
+				&& isInRange(anotherInterface)
 				&& !isConnected(anotherInterface) ) {
-			Connection con = new VBRConnection(this.host, this, 
-					anotherInterface.getHost(), anotherInterface);
+			Connection con = newVBRConnection(anotherInterface);
 			connect(con,anotherInterface);
 		}
 	}
@@ -75,8 +108,10 @@ public class DistanceCapacityInterface extends NetworkInterface {
 			return; /* nothing to do */
 		}
 		
-		// First break the old ones
-		optimizer.updateLocation(this);
+		// First find the contacts of all the interfaces of this type
+		detector.update();
+
+		// Then break the old ones of this interface
 		for (int i=0; i<this.connections.size(); ) {
 			Connection con = this.connections.get(i);
 			NetworkInterface anotherInterface = con.getOtherInterface(this);
@@ -84,7 +119,7 @@ public class DistanceCapacityInterface extends NetworkInterface {
 			// all connections should be up at this stage
 			assert con.isUp() : "Connection " + con + " was down!";
 
-			if ((disconnectWhenNotActive && !isActive()) || !isWithinRange(anotherInterface)) {
+			if ((disconnectWhenNotActive && !isActive()) || !isInRange(anotherInterface)) {
 				disconnect(con,anotherInterface);
 				connections.remove(i);
 			}
@@ -93,12 +128,6 @@ public class DistanceCapacityInterface extends NetworkInterface {
 			}
 		}
 		if (isActive()) {
-			// Then find new possible connections
-			Collection<NetworkInterface> interfaces =
-				optimizer.getNearInterfaces(this);
-			for (NetworkInterface i : interfaces) {
-				connect(i);
-			}
 			/* update all connections */
 			for (Connection con : getConnections()) {
 				con.update();
@@ -114,12 +143,23 @@ public class DistanceCapacityInterface extends NetworkInterface {
 	 */
 	public void createConnection(NetworkInterface anotherInterface) {
 		if (!isConnected(anotherInterface) && (this != anotherInterface)) {    			
-			Connection con = new VBRConnection(this.host, this, 
-					anotherInterface.getHost(), anotherInterface);
+			Connection con = newVBRConnection(anotherInterface);
 			connect(con,anotherInterface);
 		}
 	}
 
+	@Override
+	protected void connectionDown(Connection con) {
+		super.connectionDown(con);
+		RateProfile profile = this.rateProfiles.remove(
+				con.getOtherInterface(this));
+		if (profile != null) {
+			profile.destinationA = null;
+			profile.destinationB = null;
+			this.freeProfiles.add(profile);
+		}
+	}
+
 	/**
 	 * Returns the transmit speed to another interface based on the
 	 * distance to this interface
@@ -127,30 +167,106 @@ public class DistanceCapacityInterface extends NetworkInterface {
 	 */
 	@Override
 	public int getTransmitSpeed(NetworkInterface ni) {
-		double distance;
-		double fractionIndex;
-		double decimal;
-		double speed;
-		int index;
-		
-		/* distance to the other interface */
-		distance = ni.getLocation().distance(this.getLocation());
-		
-		if (distance >= this.transmitRange) {
-			return 0;
+		double now = SimClock.getTime();
+		long epoch = DTNHost.getMovementEpoch();
+		RateProfile profile = this.rateProfiles.get(ni);
+
+		if (profile == null) {
+			int nrofFree = this.freeProfiles.size();
+			profile = nrofFree > 0 ? this.freeProfiles.remove(nrofFree - 1) :
+				new RateProfile();
+			this.rateProfiles.put(ni, profile);
+		} else if (profile.time == now && profile.epoch == epoch) {
+			return profile.speed; /* already computed during this update */
+		} else if (!profile.isStale(now, epoch) &&
+				profile.isValid(now, this.host, ni.getHost())) {
+			profile.time = now;
+			profile.epoch = epoch;
+			profile.speed = profile.evaluate(now);
+			return profile.speed;
 		}
 
-		/* interpolate between the two speeds */
-		fractionIndex = (distance / this.transmitRange) * 
-				(this.transmitSpeeds.length - 1); 
-		index = (int)(fractionIndex);
-		decimal = fractionIndex - index;
+		computeProfile(profile, ni, now);
+		profile.epoch = epoch;
+		profile.startEpoch = epoch;
+		return profile.speed;
+	}
+
+	/**
+	 * Returns the speed at a distance by interpolating between the two
+	 * speeds of an interpolation step
+	 * @param distance The distance
+	 * @param index Index of the step
+	 * @return The speed
+	 */
+	private int getSpeed(double distance, int index) {
+		double fractionIndex = (distance / this.transmitRange) *
+				(this.transmitSpeeds.length - 1);
+		double decimal = Math.min(Math.max(fractionIndex - index, 0), 1);
 
-		speed = this.transmitSpeeds[index] * (1-decimal) +
+		double speed = this.transmitSpeeds[index] * (1-decimal) +
 				this.transmitSpeeds[index + 1] * decimal;
 
 		return (int)speed;
 	}
+
+	/**
+	 * Computes the rate profile to another interface from the current
+	 * locations and movement of the hosts
+	 * @param profile The profile to (re)compute
+	 * @param ni The other network interface
+	 * @param now Current simulation time
+	 */
+	private void computeProfile(RateProfile profile, NetworkInterface ni,
+			double now) {
+		Coord la = this.getLocation();
+		Coord lb = ni.getLocation();
+		double step = this.transmitRange / (this.transmitSpeeds.length - 1);
+		/* distance to the other interface */
+		double distance = la.distance(lb);
+
+		profile.time = now;
+		profile.startTime = now;
+		if (distance >= this.transmitRange) {
+			profile.index = -1; /* out of range */
+			profile.lowerBound = this.transmitRange;
+			profile.upperBound = Double.MAX_VALUE;
+			profile.speed = 0;
+		} else {
+			profile.index = Math.min((int)(distance / step),
+					this.transmitSpeeds.length - 2);
+			profile.lowerBound = profile.index * step;
+			profile.upperBound = (profile.index + 1) * step;
+			profile.speed = getSpeed(distance, profile.index);
+		}
+
+		/* the profile is valid until the movement of either host changes */
+		DTNHost hostA = this.host;
+		DTNHost hostB = ni.getHost();
+		double horizon = Math.min(hostA.getVelocity(this.velocityA),
+				hostB.getVelocity(this.velocityB));
+		profile.destinationA = hostA.getDestination();
+		profile.destinationB = hostB.getDestination();
+		profile.speedA = hostA.getSpeed();
+		profile.speedB = hostB.getSpeed();
+		profile.activeA = hostA.isMovementActive();
+		profile.activeB = hostB.isMovementActive();
+		profile.px = la.getX() - lb.getX();
+		profile.py = la.getY() - lb.getY();
+		profile.wx = this.velocityA[0] - this.velocityB[0];
+		profile.wy = this.velocityA[1] - this.velocityB[1];
+
+		if (horizon <= 0) {
+			profile.validUntil = now; /* movement not known */
+			return;
+		}
+
+		/* ...or the distance moves out of the current step */
+		double breakpoint = Math.min(profile.getCrossingTime(
+				profile.lowerBound), profile.getCrossingTime(
+						profile.upperBound));
+		profile.validUntil = now + Math.min(horizon, breakpoint);
+	}
 	
 	/**
 	 * Returns a string representation of the object.
@@ -160,4 +276,118 @@ public class DistanceCapacityInterface extends NetworkInterface {
 		return "DistanceCapacityInterface " + super.toString();
 	}
 
+	/**
+	 * Rate profile to another interface. Stores the speed of the current
+	 * update and the relative movement of the hosts, which gives the
+	 * distance (and speed) until the profile's breakpoint.
+	 */
+	private class RateProfile {
+		/** sim time of the cached speed */
+		private double time;
+		/** movement epoch of the cached speed */
+		private long epoch;
+		/** the cached speed */
+		private int speed;
+		/** sim time when the profile was computed */
+		private double startTime;
+		/** movement epoch when the profile was computed */
+		private long startEpoch;
+		/** sim time until which the profile is valid */
+		private double validUntil;
+		/** index of the interpolation step (-1 if out of range) */
+		private int index;
+		/** distances where the step changes */
+		private double lowerBound, upperBound;
+		/** relative location of the hosts when the profile was computed */
+		private double px, py;
+		/** relative velocity of the hosts */
+		private double wx, wy;
+		/** waypoints and speeds the hosts were moving with */
+		private Coord destinationA, destinationB;
+		private double speedA, speedB;
+		/** was the movement of the hosts active */
+		private boolean activeA, activeB;
+
+		/**
+		 * Returns true if the profile can be used at the given time
+		 * @param now Current simulation time
+		 * @param hostA This interface's host
+		 * @param hostB The other interface's host
+		 * @return True if the profile is still valid
+		 */
+		private boolean isValid(double now, DTNHost hostA, DTNHost hostB) {
+			return now < this.validUntil &&
+					hostA.getDestination() == this.destinationA &&
+					hostB.getDestination() == this.destinationB &&
+					hostA.getSpeed() == this.speedA &&
+					hostB.getSpeed() == this.speedB &&
+					hostA.isMovementActive() == this.activeA &&
+					hostB.isMovementActive() == this.activeB;
+		}
+
+		/**
+		 * Returns true if the profile was computed at the given time but
+		 * before the hosts moved (the world may update the hosts both before
+		 * and after moving them at the same time), so it doesn't describe
+		 * the locations of the hosts at the time
+		 * @param now Current simulation time
+		 * @param epoch Current movement epoch
+		 * @return True if the profile must be computed again
+		 */
+		private boolean isStale(double now, long epoch) {
+			return this.startTime == now && this.startEpoch != epoch;
+		}
+
+		/**
+		 * Returns the speed at the given time (before the breakpoint). The
+		 * speed of a sloped step is interpolated from the distance at the
+		 * time, which the profile gives without reading the locations.
+		 * @param now Current simulation time
+		 * @return The speed
+		 */
+		private int evaluate(double now) {
+			if (this.index < 0) {
+				return 0;
+			}
+			if (transmitSpeeds[this.index] == transmitSpeeds[this.index + 1]) {
+				return transmitSpeeds[this.index]; /* flat step */
+			}
+			double t = now - this.startTime;
+			double dx = this.px + this.wx * t;
+			double dy = this.py + this.wy * t;
+			return getSpeed(Math.sqrt(dx*dx + dy*dy), this.index);
+		}
+
+		/**
+		 * Returns after how long the distance of the hosts first becomes
+		 * equal to the given distance
+		 * @param distance The distance
+		 * @return Time to the crossing or Double.MAX_VALUE if the distance
+		 * is never crossed
+		 */
+		private double getCrossingTime(double distance) {
+			if (distance <= 0 || distance == Double.MAX_VALUE) {
+				return Double.MAX_VALUE;
+			}
+			/* solve |p + w*t| = distance */
+			double qa = this.wx*this.wx + this.wy*this.wy;
+			if (qa == 0) {
+				return Double.MAX_VALUE; /* no relative movement */
+			}
+			double qb = 2 * (this.px*this.wx + this.py*this.wy);
+			double qc = this.px*this.px + this.py*this.py - distance*distance;
+			double disc = qb*qb - 4*qa*qc;
+			if (disc < 0) {
+				return Double.MAX_VALUE;
+			}
+			double sqrtDisc = Math.sqrt(disc);
+			double first = (-qb - sqrtDisc) / (2*qa);
+			double second = (-qb + sqrtDisc) / (2*qa);
+			if (first > 0) {
+				return first;
+			}
+			return second > 0 ? second : Double.MAX_VALUE;
+		}
+	}
+
 }
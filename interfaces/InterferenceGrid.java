@@ -0,0 +1,429 @@
+/* 
+ * Copyright 2010 Aalto University, ComNet
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package interfaces;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import core.Coord;
+import core.DTNHost;
+import core.DTNSim;
+import core.NetworkInterface;
+import core.SimClock;
+
+/**
+ * Received interference power of the network interfaces of one type.
+ * Once per simulation update the transmitting interfaces are placed in a
+ * grid of cells that have the same size as the cells of the connectivity
+ * grid (the transmit range) and every cell stores the total transmit power
+ * and the power-weighted center of its transmitters. The cells are further
+ * merged into a pyramid of coarser levels, where each cell covers 2x2 cells
+ * of the level below.
+ * <P>The interference at a location is summed exactly from the transmitters
+ * of the cell of the location and its 8 neighbour cells. The pyramid is
+ * walked from the top for the rest of the cells (Barnes-Hut style): if a
+ * cell is far enough, i.e., its size divided by the distance to its center
+ * is smaller than the threshold theta, its aggregated power is used as if
+ * all of its transmitters were at the center. Otherwise the cell is opened
+ * and its children are examined, and the transmitters of a lowest level
+ * cell that is not far enough are summed exactly. The cost of one query is
+ * thus the number of nearby transmitters plus roughly logarithmic in the
+ * number of cells.</P>
+ * <P>The received power follows the path loss model P*d^-a, where P is the
+ * transmit power and a the path loss exponent. Distances shorter than
+ * {@link #MIN_DISTANCE} are rounded up to avoid infinite powers.</P>
+ */
+public class InterferenceGrid {
+	/** Shortest distance used in the path loss model ({@value}) */
+	public static final double MIN_DISTANCE = 1.0;
+	/** Maximum number of levels of the cell pyramid ({@value}) */
+	public static final int MAX_LEVELS = 24;
+
+	/** Interference grids of each interface type (keyed by the type id) */
+	private static HashMap<Integer, InterferenceGrid> grids;
+
+	static {
+		DTNSim.registerForReset(InterferenceGrid.class.getCanonicalName());
+		reset();
+	}
+
+	/** the interfaces of this type in the order they were added */
+	private List<NetworkInterface> interfaces;
+	/** size of the cells of the lowest level */
+	private double cellSize;
+	/** transmit power of one transmitter */
+	private double transmitPower;
+	/** path loss exponent */
+	private double pathLossExponent;
+	/** threshold of the cell size / distance ratio for using aggregates */
+	private double theta;
+	/** cells of each level of the pyramid (keyed by the cell indexes) */
+	private List<HashMap<Long, Cell>> levels;
+	/** transmitters of the current update */
+	private List<NetworkInterface> transmitters;
+	/** cell objects that can be reused */
+	private List<Cell> cellPool;
+	/** number of cell objects taken from the pool in the current update */
+	private int nrofPooledCells;
+	/** sim time of the last update of the grid */
+	private double lastUpdate;
+	/** movement epoch of the last update of the grid */
+	private long lastEpoch;
+
+	/**
+	 * Resets the static fields of the class
+	 */
+	public static void reset() {
+		grids = new HashMap<Integer, InterferenceGrid>();
+	}
+
+	/**
+	 * Creates a new interference grid.
+	 * @param cellSize Size of the cells of the lowest level
+	 * @param transmitPower Transmit power of one transmitter
+	 * @param pathLossExponent Path loss exponent
+	 * @param theta Threshold of the cell size / distance ratio for using the
+	 * aggregated power of a cell
+	 */
+	private InterferenceGrid(double cellSize, double transmitPower,
+			double pathLossExponent, double theta) {
+		this.interfaces = new ArrayList<NetworkInterface>();
+		this.cellSize = cellSize;
+		this.transmitPower = transmitPower;
+		this.pathLossExponent = pathLossExponent;
+		this.theta = theta;
+		this.levels = new ArrayList<HashMap<Long, Cell>>();
+		this.transmitters = new ArrayList<NetworkInterface>();
+		this.cellPool = new ArrayList<Cell>();
+		this.nrofPooledCells = 0;
+		this.lastUpdate = -1;
+		this.lastEpoch = -1;
+	}
+
+	/**
+	 * Returns the interference grid of an interface type. Only one grid
+	 * is created for each type (key).
+	 * @param key Unique key of the interface type
+	 * @param cellSize Size of the cells of the lowest level
+	 * @param transmitPower Transmit power of one transmitter
+	 * @param pathLossExponent Path loss exponent
+	 * @param theta Threshold of the cell size / distance ratio for using the
+	 * aggregated power of a cell
+	 * @return The interference grid of the interface type
+	 */
+	public static InterferenceGrid InterferenceGridFactory(int key,
+			double cellSize, double transmitPower, double pathLossExponent,
+			double theta) {
+		InterferenceGrid ig = grids.get(key);
+		if (ig == null) {
+			ig = new InterferenceGrid(cellSize, transmitPower,
+					pathLossExponent, theta);
+			grids.put(key, ig);
+		}
+		return ig;
+	}
+
+	/**
+	 * Adds a network interface to the grid
+	 * @param ni The interface to add
+	 */
+	public void addInterface(NetworkInterface ni) {
+		this.interfaces.add(ni);
+	}
+
+	/**
+	 * Returns the power received from one transmitter
+	 * @param distance Distance to the transmitter
+	 * @return The received power
+	 */
+	public double getReceivedPower(double distance) {
+		return getReceivedPower(this.transmitPower, distance);
+	}
+
+	/**
+	 * Returns the interference power received at the location of an
+	 * interface from all the transmitters except the given two.
+	 * @param receiver The receiving interface (excluded)
+	 * @param sender The interface whose signal is received (excluded)
+	 * @return The interference power
+	 */
+	public double getInterference(NetworkInterface receiver,
+			NetworkInterface sender) {
+		update();
+
+		Coord loc = receiver.getLocation();
+		long cx = cellIndex(loc.getX());
+		long cy = cellIndex(loc.getY());
+		HashMap<Long, Cell> lowest = this.levels.get(0);
+		double interference = 0;
+
+		/* exact sum from the nearby cells */
+		for (long x = cx - 1; x <= cx + 1; x++) {
+			for (long y = cy - 1; y <= cy + 1; y++) {
+				Cell c = lowest.get(cellKey(x, y));
+				if (c == null) {
+					continue;
+				}
+				for (NetworkInterface t : c.transmitters) {
+					if (t != receiver && t != sender) {
+						interference += getReceivedPower(
+								loc.distance(t.getLocation()));
+					}
+				}
+			}
+		}
+
+		/* aggregated power from the rest, starting from the top level */
+		int top = this.levels.size() - 1;
+		for (Cell c : this.levels.get(top).values()) {
+			interference += getFarInterference(c, top, loc, cx, cy,
+					receiver, sender);
+		}
+
+		return interference;
+	}
+
+	/**
+	 * Returns the interference from the transmitters of a cell that are not
+	 * in the nearby cells of the receiver. Cells that are small enough
+	 * compared to their distance (see {@link SinrInterface#THETA_S})
+	 * are aggregated; lowest level cells that are not are summed exactly.
+	 * @param c The cell
+	 * @param level Level of the cell
+	 * @param loc Location of the receiver
+	 * @param cx Lowest level x index of the receiver's cell
+	 * @param cy Lowest level y index of the receiver's cell
+	 * @param receiver The receiving interface (excluded)
+	 * @param sender The interface whose signal is received (excluded)
+	 * @return The interference power
+	 */
+	private double getFarInterference(Cell c, int level, Coord loc,
+			long cx, long cy, NetworkInterface receiver,
+			NetworkInterface sender) {
+		/* range of the lowest level indexes the cell covers */
+		long minX = c.x << level;
+		long maxX = ((c.x + 1) << level) - 1;
+		long minY = c.y << level;
+		long maxY = ((c.y + 1) << level) - 1;
+		boolean coversNearby = minX <= cx + 1 && maxX >= cx - 1 &&
+				minY <= cy + 1 && maxY >= cy - 1;
+
+		if (!coversNearby) {
+			double dx = c.getCenterX() - loc.getX();
+			double dy = c.getCenterY() - loc.getY();
+			double distance = Math.sqrt(dx*dx + dy*dy);
+			double size = this.cellSize * (1L << level);
+			if (size < this.theta * distance) {
+				return getReceivedPower(c.power, distance);
+			}
+		}
+
+		double interference = 0;
+		if (level == 0) {
+			if (coversNearby) {
+				return 0; /* summed exactly */
+			}
+			for (NetworkInterface t : c.transmitters) {
+				if (t != receiver && t != sender) {
+					interference += getReceivedPower(
+							loc.distance(t.getLocation()));
+				}
+			}
+			return interference;
+		}
+
+		for (Cell child : c.children) {
+			interference += getFarInterference(child, level - 1, loc, cx, cy,
+					receiver, sender);
+		}
+		return interference;
+	}
+
+	/**
+	 * Builds the cell pyramid of the current transmitters if it hasn't been
+	 * built yet during this simulation update or if the hosts have moved
+	 * since it was built (see {@link DTNHost#getMovementEpoch()})
+	 */
+	private void update() {
+		double simTime = SimClock.getTime();
+		long epoch = DTNHost.getMovementEpoch();
+		if (simTime == this.lastUpdate && epoch == this.lastEpoch) {
+			return; /* already up to date */
+		}
+		this.lastUpdate = simTime;
+		this.lastEpoch = epoch;
+
+		for (HashMap<Long, Cell> level : this.levels) {
+			level.clear();
+		}
+		this.nrofPooledCells = 0;
+		this.transmitters.clear();
+
+		for (NetworkInterface ni : this.interfaces) {
+			if (ni.isActive() && ni.isTransmiting()) {
+				this.transmitters.add(ni);
+			}
+		}
+
+		/* the lowest level has the transmitters */
+		HashMap<Long, Cell> lowest = getLevel(0);
+		for (NetworkInterface ni : this.transmitters) {
+			Coord loc = ni.getLocation();
+			long x = cellIndex(loc.getX());
+			long y = cellIndex(loc.getY());
+			Long key = cellKey(x, y);
+			Cell c = lowest.get(key);
+			if (c == null) {
+				c = getCell(x, y);
+				lowest.put(key, c);
+			}
+			c.addTransmitter(ni, loc);
+		}
+
+		/* each upper level merges 2x2 cells of the level below */
+		int level = 0;
+		while (getLevel(level).size() > 1 && level < MAX_LEVELS - 1) {
+			HashMap<Long, Cell> upper = getLevel(level + 1);
+			for (Cell child : getLevel(level).values()) {
+				long x = child.x >> 1;
+				long y = child.y >> 1;
+				Long key = cellKey(x, y);
+				Cell parent = upper.get(key);
+				if (parent == null) {
+					parent = getCell(x, y);
+					upper.put(key, parent);
+				}
+				parent.addChild(child);
+			}
+			level++;
+		}
+
+		/* drop the levels above the top (from earlier updates) */
+		while (this.levels.size() > level + 1) {
+			this.levels.remove(this.levels.size() - 1);
+		}
+	}
+
+	/**
+	 * Returns the cells of a level, creating the level if needed
+	 * @param level The level
+	 * @return The cells of the level
+	 */
+	private HashMap<Long, Cell> getLevel(int level) {
+		while (this.levels.size() <= level) {
+			this.levels.add(new HashMap<Long, Cell>());
+		}
+		return this.levels.get(level);
+	}
+
+	/**
+	 * Returns an empty cell, reusing the cells of the earlier updates
+	 * @param x X index of the cell
+	 * @param y Y index of the cell
+	 * @return The cell
+	 */
+	private Cell getCell(long x, long y) {
+		Cell c;
+		if (this.nrofPooledCells < this.cellPool.size()) {
+			c = this.cellPool.get(this.nrofPooledCells);
+		} else {
+			c = new Cell();
+			this.cellPool.add(c);
+		}
+		this.nrofPooledCells++;
+		c.reset(x, y);
+		return c;
+	}
+
+	/**
+	 * Returns the power received from a transmitter (or an aggregate)
+	 * @param power Transmit power
+	 * @param distance Distance to the transmitter
+	 * @return The received power
+	 */
+	private double getReceivedPower(double power, double distance) {
+		if (distance < MIN_DISTANCE) {
+			distance = MIN_DISTANCE;
+		}
+		return power * Math.pow(distance, -this.pathLossExponent);
+	}
+
+	/**
+	 * Returns the lowest level index of the cell of a coordinate
+	 */
+	private long cellIndex(double coordinate) {
+		return (long)Math.floor(coordinate / this.cellSize);
+	}
+
+	/**
+	 * Returns the key of a cell in the level's map
+	 */
+	private static Long cellKey(long x, long y) {
+		return (x << 32) ^ (y & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * A cell of the pyramid
+	 */
+	private class Cell {
+		/** indexes of the cell on its level */
+		private long x, y;
+		/** total transmit power in the cell */
+		private double power;
+		/** power-weighted sums of the transmitter coordinates */
+		private double sumX, sumY;
+		/** transmitters of the cell (only on the lowest level) */
+		private List<NetworkInterface> transmitters;
+		/** cells of the level below (not on the lowest level) */
+		private List<Cell> children;
+
+		private Cell() {
+			this.transmitters = new ArrayList<NetworkInterface>();
+			this.children = new ArrayList<Cell>(4);
+		}
+
+		private void reset(long x, long y) {
+			this.x = x;
+			this.y = y;
+			this.power = 0;
+			this.sumX = 0;
+			this.sumY = 0;
+			this.transmitters.clear();
+			this.children.clear();
+		}
+
+		/**
+		 * Adds a transmitter to the cell
+		 * @param ni The transmitting interface
+		 * @param loc Location of the transmitter
+		 */
+		private void addTransmitter(NetworkInterface ni, Coord loc) {
+			this.transmitters.add(ni);
+			this.power += transmitPower;
+			this.sumX += transmitPower * loc.getX();
+			this.sumY += transmitPower * loc.getY();
+		}
+
+		/**
+		 * Adds a cell of the level below to the cell
+		 * @param child The cell to add
+		 */
+		private void addChild(Cell child) {
+			this.children.add(child);
+			this.power += child.power;
+			this.sumX += child.sumX;
+			this.sumY += child.sumY;
+		}
+
+		private double getCenterX() {
+			return this.sumX / this.power;
+		}
+
+		private double getCenterY() {
+			return this.sumY / this.power;
+		}
+	}
+}
@@ -4,12 +4,9 @@
  */
 package interfaces;
 
-import java.util.Collection;
-
 import core.Connection;
 import core.NetworkInterface;
 import core.Settings;
-import core.VBRConnection;
 
 /**
  * A simple Network Interface that provides a variable bit-rate service, where
@@ -19,12 +16,10 @@ import core.VBRConnection;
  */
 public class InterferenceLimitedWaveInterface extends NetworkInterface {
 	protected int currentTransmitSpeed;
-	protected int numberOfTransmissions;
 
 	public InterferenceLimitedWaveInterface(Settings s) {
 		super(s);
 		this.currentTransmitSpeed = 0;
-		this.numberOfTransmissions = 0;
 	}
 
 	/**
@@ -36,7 +31,6 @@ public class InterferenceLimitedWaveInterface extends NetworkInterface {
 		this.transmitRange = ni.transmitRange;
 		this.transmitSpeed = ni.transmitSpeed;
 		this.currentTransmitSpeed = 0;
-		this.numberOfTransmissions = 0;
 	}
 
 	
@@ -60,13 +54,12 @@ public class InterferenceLimitedWaveInterface extends NetworkInterface {
 	 */
 	public void connect(NetworkInterface anotherInterface) {
 		if (updateScanning() && this != anotherInterface 
-				&& anotherInterface.getHost().isRadioActiveByIfaceType(this.getInterfaceType())
-				&& isWithinRange(anotherInterface)
+				&& anotherInterface.getHost().isRadioActiveByIfaceType(this.getInterfaceTypeId())
+				&& isInRange(anotherInterface)
 				&& !isConnected(anotherInterface) ) {
 			// new contact within range
 
-			Connection con = new VBRConnection(this.host, this,
-					anotherInterface.getHost(), anotherInterface);
+			Connection con = newVBRConnection(anotherInterface);
 			connect(con, anotherInterface);
 		}
 	}
@@ -80,8 +73,10 @@ public class InterferenceLimitedWaveInterface extends NetworkInterface {
 			return; /* nothing to do */
 		}
 		
-		// First break the old ones
-		optimizer.updateLocation(this);
+		// First find the contacts of all the interfaces of this type
+		detector.update();
+
+		// Then break the old ones of this interface
 		for (int i=0; i<this.connections.size(); ) {
 			Connection con = this.connections.get(i);
 			NetworkInterface anotherInterface = con.getOtherInterface(this);
@@ -89,7 +84,7 @@ public class InterferenceLimitedWaveInterface extends NetworkInterface {
 			// all connections should be up at this stage
 			assert con.isUp() : "Connection " + con + " was down!";
 
-			if ((disconnectWhenNotActive && !isActive()) || !isWithinRange(anotherInterface)) {
+			if ((disconnectWhenNotActive && !isActive()) || !isInRange(anotherInterface)) {
 				disconnect(con,anotherInterface);
 				connections.remove(i);
 			} else {
@@ -98,37 +93,15 @@ public class InterferenceLimitedWaveInterface extends NetworkInterface {
 		}
 
 		if (isActive()) {
-			// Then find new possible connections
-			Collection<NetworkInterface> interfaces = 
-				optimizer.getNearInterfaces(this);
-			for (NetworkInterface i : interfaces) 
-				connect(i);
-
-			// Find the current number of transmissions
-			// (to calculate the current transmission speed
-			numberOfTransmissions = 0;
-			int numberOfActive = 1;
-			for (Connection con : this.connections) {
-				if (con.getMessage() != null) {
-					numberOfTransmissions++;
-				}
-				if (((InterferenceLimitedWaveInterface)con.getOtherInterface(this)).
-						isTransferring() == true) {
-					numberOfActive++;
-				}
+			if (neighbourhoodChanged) {
+				// Based on the equation of Gupta and Kumar - and the transmission speed
+				// is divided equally to all the ongoing transmissions 
+				currentTransmitSpeed = InterferenceLimitedInterface.
+					getGuptaKumarSpeed(transmitSpeed, nrofActiveNeighbours + 1,
+							nrofTransfers);
+				neighbourhoodChanged = false;
 			}
 
-			int ntrans = numberOfTransmissions;
-			if ( numberOfTransmissions < 1) ntrans = 1;
-			if ( numberOfActive <2 ) numberOfActive = 2;
-
-			// Based on the equation of Gupta and Kumar - and the transmission speed
-			// is divided equally to all the ongoing transmissions 
-			currentTransmitSpeed = (int)Math.floor((double)transmitSpeed / 
-					(Math.sqrt((1.0*numberOfActive) *
-							Math.log(1.0*numberOfActive))) /
-								ntrans );
-			
 			for (Connection con : getConnections()) {
 				con.update();
 			}
@@ -144,8 +117,7 @@ public class InterferenceLimitedWaveInterface extends NetworkInterface {
 		if (!isConnected(anotherInterface) && (this != anotherInterface)) {
 			// new contact within range
 
-			Connection con = new VBRConnection(this.host, this, 
-					anotherInterface.getHost(), anotherInterface);
+			Connection con = newVBRConnection(anotherInterface);
 			connect(con,anotherInterface);
 		}
 	}
@@ -154,7 +126,7 @@ public class InterferenceLimitedWaveInterface extends NetworkInterface {
 	 * Returns true if this interface is actually transmitting data
 	 */
 	public boolean isTransferring() {
-		return (numberOfTransmissions > 0);
+		return (nrofTransfers > 0);
 	}
 
 	/**
@@ -4,9 +4,6 @@
  */
 package interfaces;
 
-import java.util.Collection;
-
-import core.CBRConnection;
 import core.Connection;
 import core.NetworkInterface;
 import core.Settings;
@@ -43,8 +40,8 @@ public class SimpleBroadcastInterface extends NetworkInterface {
 	 */
 	public void connect(NetworkInterface anotherInterface) {
 		if (updateScanning() && this != anotherInterface 
-				&& anotherInterface.getHost().isRadioActiveByIfaceType(this.getInterfaceType())
-				&& isWithinRange(anotherInterface)
+				&& anotherInterface.getHost().isRadioActiveByIfaceType(this.getInterfaceTypeId())
+				&& isInRange(anotherInterface)
 				&& !isConnected(anotherInterface) ) {
 			// new contact within range
 			// connection speed is the lower one of the two speeds 
@@ -53,8 +50,7 @@ public class SimpleBroadcastInterface extends NetworkInterface {
 				conSpeed = this.transmitSpeed; 
 			}
 
-			Connection con = new CBRConnection(this.host, this, 
-					anotherInterface.getHost(), anotherInterface, conSpeed);
+			Connection con = newCBRConnection(anotherInterface, conSpeed);
 			connect(con,anotherInterface);
 		}
 	}
@@ -68,8 +64,10 @@ public class SimpleBroadcastInterface extends NetworkInterface {
 			return; /* nothing to do */
 		}
 		
-		// First break the old ones
-		optimizer.updateLocation(this);
+		// First find the contacts of all the interfaces of this type
+		detector.update();
+
+		// Then break the old ones of this interface
 		for (int i=0; i<this.connections.size(); ) {
 			Connection con = this.connections.get(i);
 			NetworkInterface anotherInterface = con.getOtherInterface(this);
@@ -77,7 +75,7 @@ public class SimpleBroadcastInterface extends NetworkInterface {
 			// all connections should be up at this stage
 			assert con.isUp() : "Connection " + con + " was down!";
 
-			if ((disconnectWhenNotActive && !isActive()) || !isWithinRange(anotherInterface)) {
+			if ((disconnectWhenNotActive && !isActive()) || !isInRange(anotherInterface)) {
 				disconnect(con,anotherInterface);
 				connections.remove(i);
 			}
@@ -85,15 +83,6 @@ public class SimpleBroadcastInterface extends NetworkInterface {
 				i++;
 			}
 		}
-		
-		if (isActive()) {
-			// Then find new possible connections
-			Collection<NetworkInterface> interfaces =
-				optimizer.getNearInterfaces(this);
-			for (NetworkInterface i : interfaces) {
-				connect(i);
-			}
-		}
 	}
 
 	/** 
@@ -109,8 +98,7 @@ public class SimpleBroadcastInterface extends NetworkInterface {
 				conSpeed = this.transmitSpeed; 
 			}
 
-			Connection con = new CBRConnection(this.host, this, 
-					anotherInterface.getHost(), anotherInterface, conSpeed);
+			Connection con = newCBRConnection(anotherInterface, conSpeed);
 			connect(con,anotherInterface);
 		}
 	}
@@ -0,0 +1,210 @@
+/* 
+ * Copyright 2010 Aalto University, ComNet
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package interfaces;
+
+import core.Connection;
+import core.DTNHost;
+import core.NetworkInterface;
+import core.Settings;
+
+/**
+ * A Network Interface whose bit-rate depends on the signal to interference
+ * plus noise ratio (SINR) at the receiver. All the transmitting interfaces
+ * of the same type interfere, not only the connected ones. The received
+ * powers follow the path loss model P*d^-a and the interference is
+ * computed with an {@link InterferenceGrid}, which sums the nearby
+ * transmitters exactly and approximates the distant ones with the
+ * aggregated powers of grid cells. The speed of a link is the Shannon
+ * capacity <CODE>bandwidth * log2(1 + SINR)</CODE>, but at most the
+ * configured transmit speed.
+ */
+public class SinrInterface extends NetworkInterface {
+	/**
+	 * Path loss exponent -setting id ({@value}). Default is
+	 * {@link #DEF_PATH_LOSS_EXPONENT}.
+	 */
+	public static final String PATH_LOSS_EXPONENT_S = "pathLossExponent";
+	/**
+	 * Transmit power of one interface -setting id ({@value}). Default is 1.
+	 */
+	public static final String TRANSMIT_POWER_S = "transmitPower";
+	/**
+	 * Noise power at the receivers -setting id ({@value}). Default is the
+	 * power received from the end of the transmit range divided by
+	 * {@link #DEF_EDGE_SNR}.
+	 */
+	public static final String NOISE_POWER_S = "noisePower";
+	/**
+	 * Bandwidth of the channel -setting id ({@value}). The Shannon capacity
+	 * is multiplied by this (i.e., the unit is bytes per second). Default is
+	 * the transmit speed.
+	 */
+	public static final String BANDWIDTH_S = "bandwidth";
+	/**
+	 * Threshold of the cell size / distance ratio for using the aggregated
+	 * power of distant cells -setting id ({@value}). Smaller values are more
+	 * exact but slower. Default is {@link #DEF_THETA}.
+	 */
+	public static final String THETA_S = "farFieldTheta";
+
+	/** Default path loss exponent ({@value}) */
+	public static final double DEF_PATH_LOSS_EXPONENT = 3.0;
+	/** Default SNR at the end of the transmit range ({@value}) */
+	public static final double DEF_EDGE_SNR = 10.0;
+	/** Default far field threshold ({@value}) */
+	public static final double DEF_THETA = 0.5;
+
+	protected double pathLossExponent;
+	protected double transmitPower;
+	protected double noisePower;
+	protected double bandwidth;
+	protected double theta;
+	/** the interference grid of this interface type */
+	protected InterferenceGrid interferenceGrid = null;
+
+	/**
+	 * Reads the interface settings from the Settings file
+	 */
+	public SinrInterface(Settings s) {
+		super(s);
+		this.pathLossExponent = s.contains(PATH_LOSS_EXPONENT_S) ?
+				s.getDouble(PATH_LOSS_EXPONENT_S) : DEF_PATH_LOSS_EXPONENT;
+		this.transmitPower = s.contains(TRANSMIT_POWER_S) ?
+				s.getDouble(TRANSMIT_POWER_S) : 1.0;
+		this.noisePower = s.contains(NOISE_POWER_S) ?
+				s.getDouble(NOISE_POWER_S) : this.transmitPower *
+				Math.pow(this.transmitRange, -this.pathLossExponent) /
+				DEF_EDGE_SNR;
+		this.bandwidth = s.contains(BANDWIDTH_S) ?
+				s.getDouble(BANDWIDTH_S) : this.transmitSpeed;
+		this.theta = s.contains(THETA_S) ? s.getDouble(THETA_S) : DEF_THETA;
+	}
+
+	/**
+	 * Copy constructor
+	 * @param ni the copied network interface object
+	 */
+	public SinrInterface(SinrInterface ni) {
+		super(ni);
+		this.pathLossExponent = ni.pathLossExponent;
+		this.transmitPower = ni.transmitPower;
+		this.noisePower = ni.noisePower;
+		this.bandwidth = ni.bandwidth;
+		this.theta = ni.theta;
+	}
+
+	public NetworkInterface replicate() {
+		return new SinrInterface(this);
+	}
+
+	@Override
+	public void setHost(DTNHost host) {
+		super.setHost(host);
+		if (transmitRange > 0) {
+			interferenceGrid = InterferenceGrid.InterferenceGridFactory(
+					this.interfaceTypeId, transmitRange, transmitPower,
+					pathLossExponent, theta);
+			interferenceGrid.addInterface(this);
+		} else {
+			interferenceGrid = null;
+		}
+	}
+
+	/**
+	 * Tries to connect this host to another host. The other host must be
+	 * active and within range of this host for the connection to succeed.
+	 * @param anotherInterface The interface to connect to
+	 */
+	public void connect(NetworkInterface anotherInterface) {
+		if (updateScanning() && this != anotherInterface
+				&& anotherInterface.getHost().isRadioActiveByIfaceType(this.getInterfaceTypeId())
+				&& isInRange(anotherInterface)
+				&& !isConnected(anotherInterface) ) {
+			Connection con = newVBRConnection(anotherInterface);
+			connect(con,anotherInterface);
+		}
+	}
+
+	/**
+	 * Updates the state of current connections (i.e. tears down connections
+	 * that are out of range and updates the speeds of the rest).
+	 */
+	public void update() {
+		if (optimizer == null) {
+			return; /* nothing to do */
+		}
+
+		// First find the contacts of all the interfaces of this type
+		detector.update();
+
+		// Then break the old ones of this interface
+		for (int i=0; i<this.connections.size(); ) {
+			Connection con = this.connections.get(i);
+			NetworkInterface anotherInterface = con.getOtherInterface(this);
+
+			// all connections should be up at this stage
+			assert con.isUp() : "Connection " + con + " was down!";
+
+			if ((disconnectWhenNotActive && !isActive()) || !isInRange(anotherInterface)) {
+				disconnect(con,anotherInterface);
+				connections.remove(i);
+			}
+			else {
+				i++;
+			}
+		}
+		if (isActive()) {
+			/* update all connections */
+			for (Connection con : getConnections()) {
+				con.update();
+			}
+		}
+	}
+
+	/**
+	 * Creates a connection to another host. This method does not do any checks
+	 * on whether the other node is in range or active
+	 * @param anotherInterface The interface to create the connection to
+	 */
+	public void createConnection(NetworkInterface anotherInterface) {
+		if (!isConnected(anotherInterface) && (this != anotherInterface)) {
+			Connection con = newVBRConnection(anotherInterface);
+			connect(con,anotherInterface);
+		}
+	}
+
+	/**
+	 * Returns the transmit speed from this interface to another interface
+	 * based on the SINR at the other interface
+	 * @param ni The other network interface
+	 */
+	@Override
+	public int getTransmitSpeed(NetworkInterface ni) {
+		if (interferenceGrid == null) {
+			return 0;
+		}
+
+		double distance = ni.getLocation().distance(this.getLocation());
+		if (distance > this.transmitRange) {
+			return 0;
+		}
+
+		double signal = interferenceGrid.getReceivedPower(distance);
+		double interference = interferenceGrid.getInterference(ni, this);
+		double sinr = signal / (this.noisePower + interference);
+		double speed = this.bandwidth * Math.log(1 + sinr) / Math.log(2);
+
+		return (int)Math.min(speed, this.transmitSpeed);
+	}
+
+	/**
+	 * Returns a string representation of the object.
+	 * @return a string representation of the object.
+	 */
+	public String toString() {
+		return "SinrInterface " + super.toString();
+	}
+
+}
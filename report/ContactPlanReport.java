@@ -0,0 +1,218 @@
+/* 
+ * Copyright 2010 Aalto University, ComNet
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package report;
+
+import input.ContactPlanReader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import core.Connection;
+import core.ConnectionListener;
+import core.DTNHost;
+import core.NetworkInterface;
+import core.SimError;
+
+/**
+ * Contact plan report. Writes every contact of the simulation (interface
+ * type, hosts, up and down times and the speed of the connection) to a
+ * binary contact plan that can be replayed with {@link ContactPlanReader}
+ * without simulating the movement or the connectivity again. The speed is
+ * the speed of the connection when it came up, or when it went down if it
+ * was not known yet at the start (variable bit-rate connections). Contacts
+ * that are up at the end of the simulation end at the end time. The warmup
+ * period is not respected, since the plan must have all the contacts.
+ * The plan is written to the report's output file with suffix
+ * {@link #PLAN_SUFFIX} instead of the text file suffix.
+ */
+public class ContactPlanReport extends Report implements ConnectionListener {
+	/** Suffix of the contact plan file ({@value}) */
+	public static final String PLAN_SUFFIX = ".plan";
+
+	/** the contact plan output */
+	private DataOutputStream planOut;
+	/** ids of the interface types written to the plan */
+	private HashMap<String, Integer> typeIds;
+	/** contacts that are up, by interface type id and host pair */
+	private List<LinkedHashMap<Long, OpenContact>> openContacts;
+
+	/**
+	 * Constructor. Opens the contact plan output.
+	 */
+	public ContactPlanReport() {
+		init();
+
+		String planFile = this.outFileName;
+		if (planFile.endsWith(OUT_SUFFIX)) {
+			planFile = planFile.substring(0,
+					planFile.length() - OUT_SUFFIX.length());
+		}
+		planFile += PLAN_SUFFIX;
+
+		try {
+			this.planOut = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(planFile)));
+			this.planOut.writeInt(ContactPlanReader.PLAN_MAGIC);
+			this.planOut.writeInt(ContactPlanReader.PLAN_VERSION);
+		} catch (IOException e) {
+			throw new SimError("Couldn't open contact plan file '" +
+					planFile + "' for report output", e);
+		}
+	}
+
+	@Override
+	protected void init() {
+		super.init();
+		this.typeIds = new HashMap<String, Integer>();
+		this.openContacts = new ArrayList<LinkedHashMap<Long, OpenContact>>();
+	}
+
+	public void hostsConnected(String interfaceType, DTNHost host1,
+			DTNHost host2) {
+		int typeId = getTypeId(interfaceType);
+		Connection con = getConnection(interfaceType, host1, host2);
+		int speed = (con == null ? 0 : (int)con.getSpeed());
+
+		this.openContacts.get(typeId).put(getKey(host1, host2),
+				new OpenContact(host1.getAddress(), host2.getAddress(),
+						getSimTime(), speed));
+	}
+
+	public void hostsDisconnected(String interfaceType, DTNHost host1,
+			DTNHost host2) {
+		int typeId = getTypeId(interfaceType);
+		OpenContact oc = this.openContacts.get(typeId).remove(
+				getKey(host1, host2));
+		if (oc == null) {
+			return; /* connected before the report was created */
+		}
+
+		if (oc.speed <= 0) {
+			Connection con = getConnection(interfaceType, host1, host2);
+			if (con != null) {
+				oc.speed = (int)con.getSpeed();
+			}
+		}
+		writeContact(typeId, oc, getSimTime());
+	}
+
+	@Override
+	public void done() {
+		double endTime = getSimTime();
+		for (int typeId = 0; typeId < this.openContacts.size(); typeId++) {
+			for (OpenContact oc : this.openContacts.get(typeId).values()) {
+				writeContact(typeId, oc, endTime);
+			}
+			this.openContacts.get(typeId).clear();
+		}
+
+		try {
+			this.planOut.close();
+		} catch (IOException e) {
+			throw new SimError("Couldn't write contact plan", e);
+		}
+		super.done();
+	}
+
+	/**
+	 * Returns the id of an interface type. Writes a type record to the plan
+	 * if the type has no id yet.
+	 * @param interfaceType The interface type
+	 * @return The id of the type
+	 */
+	private int getTypeId(String interfaceType) {
+		Integer id = this.typeIds.get(interfaceType);
+		if (id != null) {
+			return id;
+		}
+
+		id = this.typeIds.size();
+		this.typeIds.put(interfaceType, id);
+		this.openContacts.add(new LinkedHashMap<Long, OpenContact>());
+		try {
+			this.planOut.writeByte(ContactPlanReader.TYPE_RECORD);
+			this.planOut.writeUTF(interfaceType);
+		} catch (IOException e) {
+			throw new SimError("Couldn't write contact plan", e);
+		}
+		return id;
+	}
+
+	/**
+	 * Writes a contact record to the plan
+	 * @param typeId Id of the contact's interface type
+	 * @param oc The contact
+	 * @param downTime Time when the contact went down
+	 */
+	private void writeContact(int typeId, OpenContact oc, double downTime) {
+		try {
+			this.planOut.writeByte(ContactPlanReader.CONTACT_RECORD);
+			this.planOut.writeShort(typeId);
+			this.planOut.writeInt(oc.from);
+			this.planOut.writeInt(oc.to);
+			this.planOut.writeDouble(oc.upTime);
+			this.planOut.writeDouble(downTime);
+			this.planOut.writeInt(oc.speed);
+		} catch (IOException e) {
+			throw new SimError("Couldn't write contact plan", e);
+		}
+	}
+
+	/**
+	 * Returns the connection between two hosts using the given interface
+	 * type or null if there is no such connection
+	 */
+	private Connection getConnection(String interfaceType, DTNHost host1,
+			DTNHost host2) {
+		NetworkInterface ni = host1.getInterfaceByTypeId(
+				NetworkInterface.getTypeId(interfaceType));
+		if (ni == null) {
+			return null;
+		}
+		for (Connection con : ni.getConnections()) {
+			if (con.getOtherNode(host1) == host2) {
+				return con;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a key for a host pair that doesn't depend on the order of the
+	 * hosts
+	 */
+	private long getKey(DTNHost host1, DTNHost host2) {
+		int a = Math.min(host1.getAddress(), host2.getAddress());
+		int b = Math.max(host1.getAddress(), host2.getAddress());
+		return ((long)a << 32) | b;
+	}
+
+	/**
+	 * A contact that is up
+	 */
+	private class OpenContact {
+		/** address of the host that initiated the contact */
+		private int from;
+		/** address of the other host */
+		private int to;
+		/** time when the contact came up */
+		private double upTime;
+		/** speed of the connection */
+		private int speed;
+
+		private OpenContact(int from, int to, double upTime, int speed) {
+			this.from = from;
+			this.to = to;
+			this.upTime = upTime;
+			this.speed = speed;
+		}
+	}
+}
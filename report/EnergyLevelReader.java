@@ -0,0 +1,339 @@
+/* 
+ * Copyright 2010 Aalto University, ComNet
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package report;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import core.EnergyModel;
+
+/**
+ * Reader of the binary output of {@link EnergyLevelReport}. Reads the
+ * snapshots one at a time and can export them as the text format of the
+ * report or as CSV. Can be run from the command line:
+ * <CODE>java report.EnergyLevelReader file [text|csv]</CODE>, which writes
+ * the export to the standard output.
+ * <P>The binary output starts with the magic number {@link #ENERGY_MAGIC},
+ * the format version {@link #ENERGY_VERSION} and the precision (number of
+ * decimals) of the values (ints). Each of the records that follow
+ * starts with a tag byte. A {@link #HOST_RECORD} has the address and the
+ * name (UTF) of a host and comes before the first snapshot of the host. A
+ * {@link #SNAPSHOT_RECORD} has the simulation time, the number of rows and
+ * a row for each reported host: the address and the {@link #NROF_COLUMNS}
+ * values (energy level and the consumed energy of each component) of the
+ * host. The values are fixed point numbers with the precision's number of
+ * decimals. Times, addresses and values are differences to the previous
+ * snapshot, the previous row and the host's values in its previous
+ * snapshot, respectively, written as zigzag varints (see
+ * {@link #writeVarLong(DataOutput, long)}).</P>
+ */
+public class EnergyLevelReader {
+	/** Magic number in the beginning of the output ({@value}) */
+	public static final int ENERGY_MAGIC = 0x454E5247;
+	/** Version of the output format ({@value}) */
+	public static final int ENERGY_VERSION = 1;
+	/** Tag of a host record ({@value}) */
+	public static final byte HOST_RECORD = 1;
+	/** Tag of a snapshot record ({@value}) */
+	public static final byte SNAPSHOT_RECORD = 2;
+	/** Number of values of a host in a snapshot: the energy level and the
+	 * components of the consumed energy ({@value}) */
+	public static final int NROF_COLUMNS =
+		1 + EnergyModel.NROF_ENERGY_COMPONENTS;
+	/** Names of the value columns (CSV header) */
+	public static final String[] COLUMN_NAMES = {"energy", "base", "ibase",
+		"sleep", "scan", "transmit", "receive", "discovery"};
+
+	private DataInputStream in;
+	/** number of decimals of the values */
+	private int precision;
+	/** multiplier of the fixed point values */
+	private double scale;
+	/** names of the hosts by address */
+	private List<String> names;
+	/** values of the hosts in their previous snapshots by address */
+	private List<long[]> previous;
+	/** time of the current snapshot */
+	private long time;
+	/** number of rows in the current snapshot */
+	private int nrofRows;
+	/** addresses of the rows of the current snapshot */
+	private int[] addresses;
+	/** values of the rows of the current snapshot */
+	private long[][] values;
+
+	/**
+	 * Opens a binary energy level output and reads its header.
+	 * @param file The file to read
+	 * @throws IOException if the file could not be read or it is not an
+	 * energy level output
+	 */
+	public EnergyLevelReader(File file) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		this.names = new ArrayList<String>();
+		this.previous = new ArrayList<long[]>();
+		this.time = 0;
+		this.nrofRows = 0;
+		this.addresses = new int[0];
+		this.values = new long[0][];
+
+		if (this.in.readInt() != ENERGY_MAGIC) {
+			this.in.close();
+			throw new IOException("Not an energy level output");
+		}
+		int version = this.in.readInt();
+		if (version != ENERGY_VERSION) {
+			this.in.close();
+			throw new IOException("Unsupported version " + version);
+		}
+		this.precision = this.in.readInt();
+		this.scale = Math.pow(10, this.precision);
+	}
+
+	/**
+	 * Reads the next snapshot
+	 * @return True if a snapshot was read, false if there are no more
+	 * snapshots
+	 * @throws IOException if the output could not be read
+	 */
+	public boolean nextSnapshot() throws IOException {
+		while (true) {
+			int tag;
+			try {
+				tag = this.in.readByte();
+			} catch (EOFException e) {
+				return false; /* end of output */
+			}
+
+			if (tag == HOST_RECORD) {
+				int address = (int)readVarLong(this.in);
+				while (this.names.size() <= address) {
+					this.names.add(null);
+					this.previous.add(new long[NROF_COLUMNS]);
+				}
+				this.names.set(address, this.in.readUTF());
+			} else if (tag == SNAPSHOT_RECORD) {
+				readSnapshot();
+				return true;
+			} else {
+				throw new IOException("Invalid record tag " + tag);
+			}
+		}
+	}
+
+	/**
+	 * Reads the rest of a snapshot record
+	 * @throws IOException if the output could not be read
+	 */
+	private void readSnapshot() throws IOException {
+		this.time += readVarLong(this.in);
+		this.nrofRows = (int)readVarLong(this.in);
+		if (this.nrofRows > this.addresses.length) {
+			this.addresses = new int[this.nrofRows];
+			this.values = new long[this.nrofRows][NROF_COLUMNS];
+		}
+
+		int address = 0;
+		for (int row = 0; row < this.nrofRows; row++) {
+			address += (int)readVarLong(this.in);
+			if (address < 0 || address >= this.names.size()) {
+				throw new IOException("Unknown host address " + address);
+			}
+			long[] prev = this.previous.get(address);
+			for (int c = 0; c < NROF_COLUMNS; c++) {
+				prev[c] += readVarLong(this.in);
+			}
+			this.addresses[row] = address;
+			System.arraycopy(prev, 0, this.values[row], 0, NROF_COLUMNS);
+		}
+	}
+
+	/**
+	 * Returns the simulation time of the current snapshot
+	 * @return The time
+	 */
+	public long getTime() {
+		return this.time;
+	}
+
+	/**
+	 * Returns the number of rows (hosts) in the current snapshot
+	 * @return The number of rows
+	 */
+	public int getNrofRows() {
+		return this.nrofRows;
+	}
+
+	/**
+	 * Returns the address of the host of a row of the current snapshot
+	 * @param row Index of the row
+	 * @return The address
+	 */
+	public int getAddress(int row) {
+		return this.addresses[row];
+	}
+
+	/**
+	 * Returns the name of the host of a row of the current snapshot
+	 * @param row Index of the row
+	 * @return The name
+	 */
+	public String getName(int row) {
+		return this.names.get(this.addresses[row]);
+	}
+
+	/**
+	 * Returns a value of a row of the current snapshot
+	 * @param row Index of the row
+	 * @param column Index of the column (0 for the energy level, 1 +
+	 * {@link EnergyModel#ENERGY_BASE} etc. for the components)
+	 * @return The value
+	 */
+	public double getValue(int row, int column) {
+		return this.values[row][column] / this.scale;
+	}
+
+	/**
+	 * Returns the precision (number of decimals) of the values
+	 * @return The precision
+	 */
+	public int getPrecision() {
+		return this.precision;
+	}
+
+	/**
+	 * Closes the output
+	 * @throws IOException if closing failed
+	 */
+	public void close() throws IOException {
+		this.in.close();
+	}
+
+	/**
+	 * Writes the rest of the snapshots in the text format of
+	 * {@link EnergyLevelReport} or as CSV
+	 * @param out Where to write
+	 * @param csv If true, writes CSV with a header line, otherwise the text
+	 * format
+	 * @throws IOException if the output could not be read
+	 */
+	public void export(PrintWriter out, boolean csv) throws IOException {
+		String valueFormat = "%." + this.precision + "f";
+		if (csv) {
+			out.print("time,host");
+			for (String name : COLUMN_NAMES) {
+				out.print("," + name);
+			}
+			out.println();
+		}
+
+		while (nextSnapshot()) {
+			if (!csv) {
+				out.println("[" + this.time + "]");
+			}
+			for (int row = 0; row < this.nrofRows; row++) {
+				StringBuilder line = new StringBuilder();
+				if (csv) {
+					line.append(this.time).append(',').append(getName(row));
+				} else {
+					line.append(getName(row));
+				}
+				for (int c = 0; c < NROF_COLUMNS; c++) {
+					line.append(csv ? ',' : ' ');
+					if (csv) { /* no locale specific decimal commas */
+						line.append(String.format(Locale.US, valueFormat,
+								getValue(row, c)));
+					} else {
+						line.append(String.format(valueFormat,
+								getValue(row, c)));
+					}
+				}
+				out.println(line);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Writes a value as a zigzag varint: the sign is moved to the lowest
+	 * bit and the value is written 7 bits per byte starting from the lowest
+	 * bits, with the highest bit of each byte telling if more bytes follow.
+	 * Small positive and negative values take one byte.
+	 * @param out Where to write
+	 * @param value The value
+	 * @throws IOException if writing failed
+	 */
+	public static void writeVarLong(DataOutput out, long value)
+			throws IOException {
+		long v = (value << 1) ^ (value >> 63);
+		while ((v & ~0x7FL) != 0) {
+			out.writeByte((int)((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.writeByte((int)v);
+	}
+
+	/**
+	 * Reads a zigzag varint written by {@link #writeVarLong(DataOutput, long)}
+	 * @param in Where to read from
+	 * @return The value
+	 * @throws IOException if reading failed
+	 */
+	public static long readVarLong(DataInput in) throws IOException {
+		long v = 0;
+		int shift = 0;
+		while (true) {
+			int b = in.readUnsignedByte();
+			v |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			shift += 7;
+			if (shift > 63) {
+				throw new IOException("Malformed varint");
+			}
+		}
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Exports a binary energy level output to the standard output.
+	 * @param args The file and optionally the format (text or csv)
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 2 || (args.length == 2 &&
+				!Arrays.asList("text", "csv").contains(args[1]))) {
+			System.err.println("Usage: java report.EnergyLevelReader " +
+					"file [text|csv]");
+			System.exit(1);
+		}
+
+		try {
+			EnergyLevelReader reader = new EnergyLevelReader(new File(args[0]));
+			try {
+				reader.export(new PrintWriter(System.out),
+						args.length == 2 && args[1].equals("csv"));
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Couldn't read '" + args[0] + "': " +
+					e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -4,6 +4,12 @@
  */
 package report;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 
@@ -17,7 +23,16 @@ import core.EnergyModel;
 /**
  * Node energy level report. Reports the energy level of all (or only some) 
  * nodes every configurable-amount-of seconds. Writes reports only after
- * the warmup period.
+ * the warmup period. Each line has the node, its energy level and the
+ * energy it has consumed so far for base operation, interface base
+ * operation, sleeping, scanning, transmitting, receiving and discovery
+ * responses.
+ * <P>If {@link #BINARY_OUTPUT} is set, the snapshots are written in a
+ * compact binary format (see {@link EnergyLevelReader}) to the report's
+ * output file with suffix {@link #BINARY_SUFFIX} instead of the text file
+ * suffix. The values are stored with the report's precision and as
+ * differences to the previous snapshot of the host.
+ * {@link EnergyLevelReader} exports the binary output as text or CSV.</P>
  */
 public class EnergyLevelReport extends Report implements UpdateListener {
 	/** Reporting granularity -setting id ({@value}). 
@@ -27,6 +42,11 @@ public class EnergyLevelReport extends Report implements UpdateListener {
 	/** Optional reported nodes (comma separated list of network addresses). 
 	 * By default all nodes are reported. */
 	public static final String REPORTED_NODES = "nodes";
+	/** Binary output -setting id ({@value}). Boolean valued. If true, the
+	 * snapshots are written in the binary format. Default = false. */
+	public static final String BINARY_OUTPUT = "binaryOutput";
+	/** Suffix of the binary output file ({@value}) */
+	public static final String BINARY_SUFFIX = ".bin";
 
 	/** value of the granularity setting */
 	protected final int granularity;
@@ -35,9 +55,21 @@ public class EnergyLevelReport extends Report implements UpdateListener {
 	/** Networks addresses (integers) of the nodes which are reported */
 	protected HashSet<Integer> reportedNodes;
 
-	private EnergyModel energy;	
-
-	//public double[] initEnergy;	
+	/** consumed energy of a host by component (reused for every host) */
+	private double[] ledger;
+	/** the binary output (null if the text format is used) */
+	private DataOutputStream binaryOut;
+	/** multiplier of the fixed point values of the binary output */
+	private double binaryScale;
+	/** time of the previous binary snapshot */
+	private long binaryTime;
+	/** values of the hosts in their previous binary snapshots by address
+	 * (null for hosts that have not been written yet) */
+	private long[][] previous;
+	/** rows of the binary snapshot being written */
+	private ByteArrayOutputStream rowBytes;
+	/** output for the rows of the binary snapshot being written */
+	private DataOutputStream rowOut;
 
 	/**
 	 * Constructor. Reads the settings and initializes the report module.
@@ -46,6 +78,7 @@ public class EnergyLevelReport extends Report implements UpdateListener {
 		Settings settings = getSettings();
 		this.lastUpdate = 0;	
 		this.granularity = settings.getInt(GRANULARITY);
+		this.ledger = new double[EnergyModel.NROF_ENERGY_COMPONENTS];
 		
 		if (settings.contains(REPORTED_NODES)) {
 			this.reportedNodes = new HashSet<Integer>();
@@ -58,6 +91,41 @@ public class EnergyLevelReport extends Report implements UpdateListener {
 		}
 		
 		init();
+		
+		if (settings.getBoolean(BINARY_OUTPUT, false)) {
+			int precision = settings.contains(PRECISION_SETTING) ?
+					settings.getInt(PRECISION_SETTING) : DEF_PRECISION;
+			openBinaryOutput(precision);
+		}
+	}
+	
+	/**
+	 * Opens the binary output and writes its header
+	 * @param precision Number of decimals of the values
+	 */
+	private void openBinaryOutput(int precision) {
+		String binFile = this.outFileName;
+		if (binFile.endsWith(OUT_SUFFIX)) {
+			binFile = binFile.substring(0,
+					binFile.length() - OUT_SUFFIX.length());
+		}
+		binFile += BINARY_SUFFIX;
+		
+		this.binaryScale = Math.pow(10, precision);
+		this.binaryTime = 0;
+		this.previous = new long[0][];
+		this.rowBytes = new ByteArrayOutputStream();
+		this.rowOut = new DataOutputStream(this.rowBytes);
+		try {
+			this.binaryOut = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(binFile)));
+			this.binaryOut.writeInt(EnergyLevelReader.ENERGY_MAGIC);
+			this.binaryOut.writeInt(EnergyLevelReader.ENERGY_VERSION);
+			this.binaryOut.writeInt(precision);
+		} catch (IOException e) {
+			throw new SimError("Couldn't open binary energy output file '" +
+					binFile + "' for report output", e);
+		}
 	}
 
 	/**
@@ -82,6 +150,15 @@ public class EnergyLevelReport extends Report implements UpdateListener {
 	 * @param hosts The list of hosts in the world
 	 */
 	private void createSnapshot(List<DTNHost> hosts) {
+		if (this.binaryOut != null) {
+			try {
+				writeBinarySnapshot(hosts);
+			} catch (IOException e) {
+				throw new SimError("Couldn't write binary energy output", e);
+			}
+			return;
+		}
+		
 		write ("[" + (int)getSimTime() + "]"); /* simulation time stamp */
 		for (DTNHost h : hosts) {
 			if (this.reportedNodes != null && 
@@ -89,32 +166,94 @@ public class EnergyLevelReport extends Report implements UpdateListener {
 				continue; /* node not in the list */
 			}
 
-			// TODO: verify why energy model is not configured before isMovementActivated is working.
-			Double energyIbase = 0.0;
-			Double energyScan = 0.0;
-			Double energyTransmit = 0.0;
-			Double energyReceive = 0.0;
-			Double energySleep = 0.0;
-			Double energyBase = (Double)h.getComBus().getProperty(EnergyModel.ENERGY_BASE_ID);
-			if (energyBase != null) {
-				//energy = new EnergyModel(getSettings());
-				//value = energy.getEnergy(this.initEnergy); // indicating energy model is not initialized
-				//value = -1.0;
-				energyIbase    = (Double)h.getComBus().getProperty(EnergyModel.ENERGY_IBASE_ID);
-				energyScan     = (Double)h.getComBus().getProperty(EnergyModel.ENERGY_SCAN_ID);
-				energyTransmit = (Double)h.getComBus().getProperty(EnergyModel.ENERGY_TRANSMIT_ID);
-				energyReceive  = (Double)h.getComBus().getProperty(EnergyModel.ENERGY_RECEIVE_ID);
-				energySleep    = (Double)h.getComBus().getProperty(EnergyModel.ENERGY_SLEEP_ID);				
-			} else {
-				energyBase = 0.0;
+			if (h.energy != null) {
+				double[] e = h.energy.getConsumedEnergy(this.ledger);
+				write(h.toString() + " " + format(h.energy.getEnergy()) + " " +
+					format(e[EnergyModel.ENERGY_BASE]) + " " +
+					format(e[EnergyModel.ENERGY_IBASE]) + " " +
+					format(e[EnergyModel.ENERGY_SLEEP]) + " " +
+					format(e[EnergyModel.ENERGY_SCAN]) + " " +
+					format(e[EnergyModel.ENERGY_TRANSMIT]) + " " +
+					format(e[EnergyModel.ENERGY_RECEIVE]) + " " +
+					format(e[EnergyModel.ENERGY_DISCOVERY]));
 			}
-
-			if (h.energy!=null)
-				write(h.toString() + " " +  format(h.energy.getEnergy()) +" "+ 
-					energyBase +" "+ energyIbase +" "+ energySleep +" "+ energyScan +" "+ 
-					energyTransmit +" "+ energyReceive);
 		}
 	
 	}
 	
+	/**
+	 * Writes a snapshot of energy levels to the binary output
+	 * @param hosts The list of hosts in the world
+	 * @throws IOException if writing failed
+	 */
+	private void writeBinarySnapshot(List<DTNHost> hosts) throws IOException {
+		long time = (int)getSimTime();
+		int nrofRows = 0;
+		int prevAddress = 0;
+		this.rowBytes.reset();
+		
+		for (DTNHost h : hosts) {
+			int address = h.getAddress();
+			if (h.energy == null || (this.reportedNodes != null && 
+				!this.reportedNodes.contains(address))) {
+				continue; /* node not reported */
+			}
+			
+			if (address >= this.previous.length) {
+				this.previous = Arrays.copyOf(this.previous,
+						Math.max(address + 1, this.previous.length * 2));
+			}
+			long[] prev = this.previous[address];
+			if (prev == null) { /* first snapshot of the host */
+				prev = new long[EnergyLevelReader.NROF_COLUMNS];
+				this.previous[address] = prev;
+				this.binaryOut.writeByte(EnergyLevelReader.HOST_RECORD);
+				EnergyLevelReader.writeVarLong(this.binaryOut, address);
+				this.binaryOut.writeUTF(h.toString());
+			}
+			
+			EnergyLevelReader.writeVarLong(this.rowOut, address - prevAddress);
+			prevAddress = address;
+			double[] e = h.energy.getConsumedEnergy(this.ledger);
+			writeValue(prev, 0, h.energy.getEnergy());
+			for (int c=0; c<EnergyModel.NROF_ENERGY_COMPONENTS; c++) {
+				writeValue(prev, c + 1, e[c]);
+			}
+			nrofRows++;
+		}
+		
+		this.binaryOut.writeByte(EnergyLevelReader.SNAPSHOT_RECORD);
+		EnergyLevelReader.writeVarLong(this.binaryOut, time - this.binaryTime);
+		EnergyLevelReader.writeVarLong(this.binaryOut, nrofRows);
+		this.rowBytes.writeTo(this.binaryOut);
+		this.binaryTime = time;
+	}
+	
+	/**
+	 * Writes a value of a host's row as the difference to the host's
+	 * previous value
+	 * @param prev The previous values of the host
+	 * @param column Index of the value
+	 * @param value The value
+	 * @throws IOException if writing failed
+	 */
+	private void writeValue(long[] prev, int column, double value)
+			throws IOException {
+		long fixed = Math.round(value * this.binaryScale);
+		EnergyLevelReader.writeVarLong(this.rowOut, fixed - prev[column]);
+		prev[column] = fixed;
+	}
+	
+	@Override
+	public void done() {
+		if (this.binaryOut != null) {
+			try {
+				this.binaryOut.close();
+			} catch (IOException e) {
+				throw new SimError("Couldn't write binary energy output", e);
+			}
+		}
+		super.done();
+	}
+	
 }
@@ -5,8 +5,10 @@
 package routing;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Random;
 
@@ -17,6 +19,7 @@ import util.Tuple;
 import core.Connection;
 import core.DTNHost;
 import core.Message;
+import core.MessageIdTable;
 import core.MessageListener;
 import core.NetworkInterface;
 import core.Settings;
@@ -39,12 +42,24 @@ public abstract class ActiveRouter extends MessageRouter {
 	
 	/** prefix of all response message IDs */
 	public static final String RESPONSE_PREFIX = "R_";
-	/** how often TTL check (discarding old messages) is performed */
+	/** how often TTL check (discarding old messages) was performed.
+	 * @deprecated Expired messages are dropped on every update by their
+	 * expiry times (see {@link #dropExpiredMessages()}) */
+	@Deprecated
 	public static int TTL_CHECK_INTERVAL = 60;
 	/** connection(s) that are currently used for sending */
 	protected ArrayList<Connection> sendingConnections;
-	/** sim time when the last TTL check was done */
-	private double lastTtlCheck;
+	/** generations of the sending connections when they were added (see
+	 * {@link #addToSendingConnections(Connection)}) */
+	private int[] sendingGenerations;
+	/** expired messages (reused for every update) */
+	private List<Message> expiredMessages;
+	/** the cheapest connection to each connected host */
+	private LinkedHashMap<DTNHost, Connection> bestConnections;
+	/** list of the cheapest connections (reused for every update) */
+	private List<Connection> bestConnectionList;
+	/** messages in send queue order (reused for every update) */
+	private List<Message> sendQueue;
 	
 	private MessageTransferAcceptPolicy policy;
 	//private EnergyModel energy;
@@ -86,13 +101,18 @@ public abstract class ActiveRouter extends MessageRouter {
 	public void init(DTNHost host, List<MessageListener> mListeners) {
 		super.init(host, mListeners);
 		this.sendingConnections = new ArrayList<Connection>(1);
-		this.lastTtlCheck = 0;
+		this.sendingGenerations = new int[1];
+		this.expiredMessages = new ArrayList<Message>();
+		this.bestConnections = new LinkedHashMap<DTNHost, Connection>();
+		this.bestConnectionList = new ArrayList<Connection>();
+		this.sendQueue = new ArrayList<Message>();
 	}
 	
 	/**
 	 * Called when a connection's state changes. If energy modeling is enabled,
 	 * and a new connection is created to this node, reduces the energy for the
-	 * device discovery (scan response) amount
+	 * device discovery (scan response) amount. Also updates the cheapest
+	 * connection to the other node.
 	 * @param @con The connection whose state changed
 	 */
 	@Override
@@ -100,6 +120,56 @@ public abstract class ActiveRouter extends MessageRouter {
 		if (con.getOtherNode(getHost()).energy != null && con.isUp() && !con.isInitiator(getHost())) {
 			con.getOtherNode(getHost()).energy.reduceDiscoveryEnergy(con.getFromInterface());
 		}
+		updateBestConnection(con);
+	}
+	
+	/**
+	 * Updates the cheapest connection to the other node of a connection
+	 * whose state changed. A connection that came up replaces the current
+	 * one if it is cheaper; if the current one went down, the cheapest of
+	 * the other connections to the node (if any) replaces it. Connections
+	 * are only recycled after this (see {@link core.ConnectionPool}), so the
+	 * cheapest connections never need a generation check.
+	 * @param con The connection whose state changed
+	 */
+	private void updateBestConnection(Connection con) {
+		DTNHost other = con.getOtherNode(getHost());
+		Connection best = this.bestConnections.get(other);
+		
+		if (con.isUp()) {
+			if (best == null || getRoutingCost(con) < getRoutingCost(best)) {
+				this.bestConnections.put(other, con);
+			}
+			return;
+		}
+		if (best != con) {
+			return; /* wasn't the cheapest one */
+		}
+		
+		best = null;
+		for (NetworkInterface ni : getHost().getInterfaces()) {
+			for (Connection c : ni.getConnections()) {
+				if (c.isUp() && c.getOtherNode(getHost()) == other &&
+						(best == null || getRoutingCost(c) < getRoutingCost(best))) {
+					best = c;
+				}
+			}
+		}
+		if (best == null) {
+			this.bestConnections.remove(other);
+		} else {
+			this.bestConnections.put(other, best);
+		}
+	}
+	
+	/**
+	 * Returns the routing cost of a connection, i.e., the routing cost of
+	 * the interface that initiated it
+	 * @param con The connection
+	 * @return The routing cost
+	 */
+	private double getRoutingCost(Connection con) {
+		return con.getFromInterface().getRoutingCost();
 	}
 	/*
 	public void changedConnection(Connection con) {
@@ -187,7 +257,7 @@ public abstract class ActiveRouter extends MessageRouter {
 	 * @param m The message to transfer
 	 * @param con The connection to use
 	 * @return the value returned by 
-	 * {@link Connection#startTransfer(DTNHost, Message)}
+	 * {@link Connection#beginTransfer(DTNHost, Message)}
 	 */
 	protected int startTransfer(Message m, Connection con) {
 		int retVal;
@@ -201,7 +271,7 @@ public abstract class ActiveRouter extends MessageRouter {
 			return MessageRouter.DENIED_POLICY;
 		}
 		
-		retVal = con.startTransfer(getHost(), m);
+		retVal = con.beginTransfer(getHost(), m);
 		if (retVal == RCV_OK) { // started transfer
 			addToSendingConnections(con);
 		}
@@ -304,16 +374,20 @@ public abstract class ActiveRouter extends MessageRouter {
 	}
 	
 	/**
-	 * Drops messages whose TTL is less than zero.
+	 * Drops messages whose TTL is less than zero. Only the messages whose
+	 * expiry time has passed are checked. Messages that are being sent are
+	 * dropped at the first update after the transfer.
 	 */
 	protected void dropExpiredMessages() {
-		Message[] messages = getMessageCollection().toArray(new Message[0]);
-		for (int i=0; i<messages.length; i++) {
-			int ttl = messages[i].getTtl(); 
-			if (ttl <= 0) {
-				deleteMessage(messages[i].getId(), true);
+		List<Message> expired = getExpiredMessages(this.expiredMessages);
+		for (Message m : expired) {
+			if (m.getTtl() > 0) {
+				updateExpiryTime(m.getId()); /* TTL was changed */
+			} else if (!isSending(m.getId())) {
+				deleteMessage(m.getId(), true);
 			}
 		}
+		expired.clear();
 	}
 	
 	/**
@@ -339,6 +413,16 @@ public abstract class ActiveRouter extends MessageRouter {
 	 * exludeMsgBeingSent is true)
 	 */
 	protected Message getNextMessageToRemove(boolean excludeMsgBeingSent) {
+		if (isQueueOrdered(true)) {
+			/* the first one in remove order that is not being sent */
+			for (Message m : getMessagesInQueueOrder(true)) {
+				if (!excludeMsgBeingSent || !isSending(m.getId())) {
+					return m;
+				}
+			}
+			return null;
+		}
+		
 		Collection<Message> messages = this.getMessageCollection();
 		Message oldest = null;
 		for (Message m : messages) {
@@ -462,8 +546,8 @@ public abstract class ActiveRouter extends MessageRouter {
 	
 	/**
 	 * Tries to send all messages that this router is carrying to all
-	 * connections this node has. Messages are ordered using the 
-	 * {@link MessageRouter#sortByQueueMode(List)}. See 
+	 * connections this node has. Messages are in the order of the 
+	 * send queue mode (see {@link MessageRouter#getMessagesInSendOrder(List)}). See 
 	 * {@link #tryMessagesToConnections(List, List)} for sending details.
 	 * @return The connections that started a transfer or null if no connection
 	 * accepted a message.
@@ -474,80 +558,40 @@ public abstract class ActiveRouter extends MessageRouter {
 			return null;
 		}
 
-		List<Message> messages = 
-			new ArrayList<Message>(this.getMessageCollection());
-		this.sortByQueueMode(messages);
+		/* a copy, since starting a transfer may remove messages */
+		this.sendQueue.clear();
+		getMessagesInSendOrder(this.sendQueue);
 
-		return tryMessagesToConnections(messages, connections);
+		return tryMessagesToConnections(this.sendQueue, connections);
 	}
 
 
 	/**
 	 * Tries to send all messages that this router is carrying to best
-	 * connections this node has to the same node. Messages are ordered using the 
-	 * {@link MessageRouter#sortByQueueMode(List)}. See 
+	 * connections this node has to the same node, i.e., the connection with
+	 * the lowest interface routing cost to each connected node (see
+	 * {@link NetworkInterface#getRoutingCost()}), which is kept up to date as
+	 * the connections change. Messages are in the order of the 
+	 * send queue mode (see {@link MessageRouter#getMessagesInSendOrder(List)}). See 
 	 * {@link #tryMessagesToConnections(List, List)} for sending details.
 	 * @return The connections that started a transfer or null if no connection
 	 * accepted a message.
 	 */
 	protected Connection tryAllMessagesToBestConnections(){
-		List<Connection> choosedConnections = new ArrayList<Connection>();
-		List<Connection> verifiedConnections = new ArrayList<Connection>();
-		List<Connection> connections = getConnections();
-		int n=connections.size();
-		if (n == 0 || this.getNrofMessages() == 0) {
+		if (this.bestConnections.isEmpty() || this.getNrofMessages() == 0) {
 			return null;
-		} else if (n==1) {
-			choosedConnections = connections;
-		} else {
+		}
 		
-			for (int i=0; i<n; i++) {
-				Connection c1 = connections.get(i);
-				boolean achou=false;
-				for (Connection c : verifiedConnections) {
-					achou = (c == c1);
-					if (achou) break;
-				}
-				if(!achou) {
-					Connection cc=c1;
-					NetworkInterface n1 = c1.getFromInterface();
-					double n1Energy = (n1.scanEnergy/n1.getScanInterval())+n1.transmitEnergy+n1.receiveEnergy;
-					for (int j=i+1; j<n; j++) {
-						Connection c2 = connections.get(j);
-						NetworkInterface n2 = c2.getFromInterface();
-						//if (c1.getToNode().energy != null && c.getFromNode().energy != null && c.isUp()) {
-						//if (c1.getFromNode().energy!=null && c1.getToNode().energy!=null) {
-							if (!(n1.getInterfaceType().equals(n2.getInterfaceType()))) {
-								if ( (c1.getToNode() == c2.getToNode() && c1.getFromNode() == c2.getFromNode()) ||
-									(c1.getToNode() == c2.getFromNode() && c1.getFromNode() == c2.getToNode()) ) {
-									double n2Energy = (n2.scanEnergy/n2.getScanInterval())+n2.transmitEnergy+n2.receiveEnergy;
-									if (n1Energy > n2Energy) {
-										verifiedConnections.add(c1);	
-										cc=c2;
-		//System.out.println("removido: "+c1);
-									} else {
-										verifiedConnections.add(c2);
-		//System.out.println("removido: "+c2);
-									}
-
-								}
-							}
-						//}
-					}
-		//System.out.println("adicionado: "+cc);
-					choosedConnections.add(cc);	
-				}
-			}
+		this.bestConnectionList.clear();
+		for (Connection con : this.bestConnections.values()) {
+			this.bestConnectionList.add(con);
 		}
 		
-		List<Message> messages = 
-			new ArrayList<Message>(this.getMessageCollection());
-		this.sortByQueueMode(messages);			
+		/* a copy, since starting a transfer may remove messages */
+		this.sendQueue.clear();
+		getMessagesInSendOrder(this.sendQueue);
 
-		//System.out.println("msgs size: "+messages.size());
-		//System.out.println("connections size: "+connections.size());
-		//System.out.println("choosedConnections size: "+choosedConnections.size());
-		return tryMessagesToConnections(messages, choosedConnections);
+		return tryMessagesToConnections(this.sendQueue, this.bestConnectionList);
 	}
 
 
@@ -601,13 +645,44 @@ public abstract class ActiveRouter extends MessageRouter {
 	
 	/**
 	 * Adds a connections to sending connections which are monitored in
-	 * the update.
+	 * the update. The generation of the connection is stored with it, so
+	 * a connection that went down and was recycled for another contact
+	 * before the update is dropped without touching it (see
+	 * {@link core.ConnectionPool}).
 	 * @see #update()
 	 * @param con The connection to add
 	 */
 	protected void addToSendingConnections(Connection con) {
+		int n = this.sendingConnections.size();
+		if (n == this.sendingGenerations.length) {
+			this.sendingGenerations = Arrays.copyOf(this.sendingGenerations,
+					n * 2);
+		}
+		this.sendingGenerations[n] = con.getGeneration();
 		this.sendingConnections.add(con);
 	}
+	
+	/**
+	 * Returns true if a sending connection has been recycled for another
+	 * contact since it was added to the sending connections
+	 * @param i Index of the connection in the sending connections
+	 * @return True if the connection is no longer the one that was added
+	 */
+	private boolean isRecycled(int i) {
+		return this.sendingConnections.get(i).getGeneration() !=
+			this.sendingGenerations[i];
+	}
+	
+	/**
+	 * Removes a connection from the sending connections
+	 * @param i Index of the connection in the sending connections
+	 */
+	private void removeSendingConnection(int i) {
+		int n = this.sendingConnections.size();
+		System.arraycopy(this.sendingGenerations, i + 1,
+				this.sendingGenerations, i, n - i - 1);
+		this.sendingConnections.remove(i);
+	}
 		
 	/**
 	 * Returns true if this router is transferring something at the moment or
@@ -642,11 +717,17 @@ public abstract class ActiveRouter extends MessageRouter {
 	 * @return True if the message is being sent false if not
 	 */
 	public boolean isSending(String msgId) {
-		for (Connection con : this.sendingConnections) {
-			if (con.getMessage() == null) {
-				continue; // transmission is finalized
+		MessageIdTable ids = MessageIdTable.getInstance();
+		int index = ids.getIndex(msgId);
+		if (index == MessageIdTable.UNKNOWN_ID) {
+			return false;
+		}
+		for (int i=0, n=this.sendingConnections.size(); i<n; i++) {
+			Connection con = this.sendingConnections.get(i);
+			if (con.getMessage() == null || isRecycled(i)) {
+				continue; // transmission is finalized or connection reused
 			}
-			if (con.getMessage().getId().equals(msgId)) {
+			if (ids.getIndex(con.getMessage().getId()) == index) {
 				return true;
 			}
 		}
@@ -671,8 +752,12 @@ public abstract class ActiveRouter extends MessageRouter {
 				boolean removeCurrent = false;
 				Connection con = sendingConnections.get(i);
 				
+				/* drop connections recycled for another contact */
+				if (isRecycled(i)) {
+					removeCurrent = true;
+				}
 				/* finalize ready transfers */
-				if (con.isMessageTransferred()) {
+				else if (con.isMessageTransferred()) {
 					if (con.getMessage() != null) {
 						transferDone(con);
 						con.finalizeTransfer();
@@ -693,7 +778,7 @@ public abstract class ActiveRouter extends MessageRouter {
 					if (this.getFreeBufferSize() < 0) {
 						this.makeRoomForMessage(0);
 					}
-					sendingConnections.remove(i);
+					removeSendingConnection(i);
 				}
 				else {
 					/* index increase needed only if nothing was removed */
@@ -701,12 +786,8 @@ public abstract class ActiveRouter extends MessageRouter {
 				}
 			}
 			
-			/* time to do a TTL check and drop old messages? Only if not sending */
-			if (SimClock.getTime() - lastTtlCheck >= TTL_CHECK_INTERVAL && 
-					sendingConnections.size() == 0) {
-				dropExpiredMessages();
-				lastTtlCheck = SimClock.getTime();
-			}
+			/* drop the messages that have expired since the last update */
+			dropExpiredMessages();
 			
 		}
 	}
@@ -12,14 +12,19 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
 
+import routing.util.MessageBuffer;
+import routing.util.MessageIdSet;
 import routing.util.RoutingInfo;
 
+import util.LongIntCounter;
+import util.LongObjectMap;
 import util.Tuple;
 
 import core.Application;
 import core.Connection;
 import core.DTNHost;
 import core.Message;
+import core.MessageIdTable;
 import core.MessageListener;
 import core.Settings;
 import core.SettingsError;
@@ -55,6 +60,24 @@ public abstract class MessageRouter {
 	/* the same of sendQueueMode, but in reverse order to remove messages from the buffer */
 	public static final String REMOVE_QUEUE_MODE_S = "removeQueueMode";
 	
+	/**
+	 * False positive rate of the delivered message set -setting id
+	 * ({@value}). With the default value 0, the set is exact (see
+	 * {@link MessageIdSet}). With a value between 0 and 1, the set is a
+	 * Bloom filter sized for {@link #SEEN_CAPACITY_S} messages, which may
+	 * make the router reject a message it has not seen with about this
+	 * probability. The blacklisted messages are always kept exactly.
+	 */
+	public static final String SEEN_FP_RATE_S = "seenFalsePositiveRate";
+	/**
+	 * Expected number of delivered messages per host for sizing the
+	 * approximate set -setting id ({@value}). Integer value,
+	 * default {@link #DEF_SEEN_CAPACITY}.
+	 */
+	public static final String SEEN_CAPACITY_S = "seenCapacity";
+	/** Default value for {@link #SEEN_CAPACITY_S} ({@value}) */
+	public static final int DEF_SEEN_CAPACITY = 10000;
+	
 	/** Setting value for random queue mode */
 	public static final int Q_MODE_RANDOM = 1;
 	/** Setting value for FIFO queue mode */
@@ -91,24 +114,33 @@ public abstract class MessageRouter {
 	public static final int DENIED_UNSPECIFIED = -99;
 	
 	private List<MessageListener> mListeners;
-	/** The messages being transferred with msgID_hostName keys */
-	private HashMap<String, Message> incomingMessages;
+	/** The messages being transferred with (ID index, from address) keys
+	 * (see {@link #getIncomingKey(int, DTNHost)}) */
+	private LongObjectMap<Message> incomingMessages;
+	/** Number of the incoming transfers of each message by ID index */
+	private LongIntCounter incomingCounts;
 	/** The messages this router is carrying */
-	private HashMap<String, Message> messages; 
+	private MessageBuffer messages; 
 	/** The messages this router has received as the final recipient */
-	private HashMap<String, Message> deliveredMessages;
-	/** The messages that Applications on this router have blacklisted */
-	private HashMap<String, Object> blacklistedMessages;
+	private MessageIdSet deliveredMessages;
+	/** The messages that Applications on this router have blacklisted */
+	private MessageIdSet blacklistedMessages;
 	/** Host where this router belongs to */
 	private DTNHost host;
 	/** size of the buffer */
 	private int bufferSize;
+	/** total size of the messages in the buffer */
+	private long occupiedBytes;
 	/** TTL for all messages */
 	protected int msgTtl;
 	/** Queue mode for sending messages */
 	private int sendQueueMode;
 	/** Queue mode for removing messages */
 	private int removeQueueMode;
+	/** false positive rate of the delivered set */
+	private double seenFpRate;
+	/** expected number of messages in the delivered set */
+	private int seenCapacity;
 
 	/** applications attached to the host */
 	private HashMap<String, Collection<Application>> applications = null;
@@ -148,6 +180,22 @@ public abstract class MessageRouter {
 		} else {
 			this.removeQueueMode = Q_MODE_FIFO;
 		}
+		this.seenFpRate = 0;
+		this.seenCapacity = DEF_SEEN_CAPACITY;
+		if (s.contains(SEEN_FP_RATE_S)) {
+			this.seenFpRate = s.getDouble(SEEN_FP_RATE_S);
+			if (seenFpRate < 0 || seenFpRate >= 1) {
+				throw new SettingsError("Invalid value for " + 
+						s.getFullPropertyName(SEEN_FP_RATE_S));
+			}
+		}
+		if (s.contains(SEEN_CAPACITY_S)) {
+			this.seenCapacity = s.getInt(SEEN_CAPACITY_S);
+			if (seenCapacity < 1) {
+				throw new SettingsError("Invalid value for " + 
+						s.getFullPropertyName(SEEN_CAPACITY_S));
+			}
+		}
 		
 	}
 	
@@ -159,10 +207,13 @@ public abstract class MessageRouter {
 	 * @param mListeners The message listeners
 	 */
 	public void init(DTNHost host, List<MessageListener> mListeners) {
-		this.incomingMessages = new HashMap<String, Message>();
-		this.messages = new HashMap<String, Message>();
-		this.deliveredMessages = new HashMap<String, Message>();
-		this.blacklistedMessages = new HashMap<String, Object>();
+		this.incomingMessages = new LongObjectMap<Message>();
+		this.incomingCounts = new LongIntCounter();
+		this.messages = new MessageBuffer(this.sendQueueMode,
+				this.removeQueueMode);
+		this.deliveredMessages = createSeenSet();
+		this.blacklistedMessages = new MessageIdSet();
+		this.occupiedBytes = 0;
 		this.mListeners = mListeners;
 		this.host = host;
 	}
@@ -176,6 +227,8 @@ public abstract class MessageRouter {
 		this.msgTtl = r.msgTtl;
 		this.sendQueueMode = r.sendQueueMode;
 		this.removeQueueMode = r.removeQueueMode;
+		this.seenFpRate = r.seenFpRate;
+		this.seenCapacity = r.seenCapacity;
 
 		this.applications = new HashMap<String, Collection<Application>>();
 		for (Collection<Application> apps : r.applications.values()) {
@@ -183,6 +236,18 @@ public abstract class MessageRouter {
 				addApplication(app.replicate());
 			}
 		}
+	}
+	
+	/**
+	 * Creates an exact or approximate set for delivered messages depending
+	 * on the {@link #SEEN_FP_RATE_S} setting
+	 * @return The set
+	 */
+	private MessageIdSet createSeenSet() {
+		if (this.seenFpRate > 0) {
+			return new MessageIdSet(this.seenCapacity, this.seenFpRate);
+		}
+		return new MessageIdSet();
 	}
 	
 	/**
@@ -219,19 +284,22 @@ public abstract class MessageRouter {
 	 * @return True if the router has message with this id, false if not
 	 */
 	public boolean hasMessage(String id) {
-		return this.messages.containsKey(id);
+		return this.messages.contains(id);
 	}
 	
 	/**
 	 * Returns true if a full message with same ID as the given message has been
 	 * received by this host as the <strong>final</strong> recipient 
-	 * (at least once).
+	 * (at least once). If the delivered messages are kept in an approximate
+	 * set (see {@link #SEEN_FP_RATE_S}), may also return true for a message
+	 * that has not been received.
 	 * @param m message we're interested of
 	 * @return true if a message with the same ID has been received by 
 	 * this host as the final recipient.
 	 */
 	protected boolean isDeliveredMessage(Message m) {
-		return (this.deliveredMessages.containsKey(m.getId()));
+		return (this.deliveredMessages.contains(
+				MessageIdTable.getInstance().getIndex(m.getId())));
 	}
 	
 	/** 
@@ -244,7 +312,8 @@ public abstract class MessageRouter {
 	 * @return <code>true</code> if blacklisted, <code>false</code> otherwise.
 	 */
 	protected boolean isBlacklistedMessage(String id) {
-		return this.blacklistedMessages.containsKey(id);
+		return this.blacklistedMessages.contains(
+				MessageIdTable.getInstance().getIndex(id));
 	}
 	
 	/**
@@ -256,7 +325,71 @@ public abstract class MessageRouter {
 	 * @return a reference to the messages of this router in collection
 	 */
 	public Collection<Message> getMessageCollection() {
-		return this.messages.values();
+		return this.messages.getMessages();
+	}
+	
+	/**
+	 * Adds the messages of this router to a list in the order of the send
+	 * queue mode. The buffer keeps the messages in that order, so the
+	 * messages are not sorted (only the random mode shuffles them, see
+	 * {@link #sortByQueueMode(List)}).
+	 * @param list The list where the messages are added (e.g., an empty
+	 * list that is reused)
+	 * @return The list
+	 */
+	@SuppressWarnings(value = "unchecked")
+	protected List<Message> getMessagesInSendOrder(List<Message> list) {
+		this.messages.getMessagesInSendOrder(list);
+		if (!this.messages.isOrdered(false)) {
+			sortByQueueMode(list);
+		}
+		return list;
+	}
+	
+	/**
+	 * Returns true if the messages of this router are kept in the order of
+	 * the send or remove queue mode (i.e., the mode is not random)
+	 * @param forRemove If true, the remove queue mode is checked, otherwise
+	 * the send queue mode
+	 * @return True if the messages are ordered
+	 */
+	protected boolean isQueueOrdered(boolean forRemove) {
+		return this.messages.isOrdered(forRemove);
+	}
+	
+	/**
+	 * Returns the messages of this router in the order of the send or remove
+	 * queue mode, i.e., the message that should be sent or removed first
+	 * comes first. Messages must not be added or removed while iterating.
+	 * @param forRemove If true, the order of the remove queue mode is used,
+	 * otherwise the order of the send queue mode
+	 * @return The messages in the order (in no particular order if the
+	 * mode is random)
+	 */
+	protected Iterable<Message> getMessagesInQueueOrder(boolean forRemove) {
+		return this.messages.getMessages(forRemove);
+	}
+	
+	/**
+	 * Adds the messages of this router that have expired (their TTL has
+	 * dropped to zero or less) since they were added to a list. The
+	 * messages are found by their expiry times, without checking the TTL of
+	 * all the messages. The messages are not removed.
+	 * @param list The list where the messages are added (e.g., an empty
+	 * list that is reused)
+	 * @return The list
+	 */
+	protected List<Message> getExpiredMessages(List<Message> list) {
+		return this.messages.getExpired(SimClock.getTime(), list);
+	}
+	
+	/**
+	 * Updates the expiry time of a message from its current TTL. Should be
+	 * called if the TTL of a buffered message is changed.
+	 * @param id Identifier of the message
+	 */
+	protected void updateExpiryTime(String id) {
+		this.messages.updateExpiryTime(id, SimClock.getTime());
 	}
 	
 	/**
@@ -278,22 +411,34 @@ public abstract class MessageRouter {
 	/**
 	 * Returns the amount of free space in the buffer. May return a negative
 	 * value if there are more messages in the buffer than should fit there
-	 * (because of creating new messages).
+	 * (because of creating new messages). The occupied space is counted
+	 * when messages are added to and removed from the buffer, so this
+	 * doesn't depend on the number of messages (with assertions enabled,
+	 * the count is checked against the messages).
 	 * @return The amount of free space (Integer.MAX_VALUE if the buffer
 	 * size isn't defined)
 	 */
 	public int getFreeBufferSize() {
-		int occupancy = 0;
-		
 		if (this.getBufferSize() == Integer.MAX_VALUE) {
 			return Integer.MAX_VALUE;
 		}
 		
+		assert this.occupiedBytes == countOccupiedBytes() : "Buffer " +
+			"occupancy " + this.occupiedBytes + " doesn't match the messages";
+		return (int)(this.getBufferSize() - this.occupiedBytes);
+	}
+	
+	/**
+	 * Counts the total size of the messages in the buffer. Used for checking
+	 * the running occupancy counter.
+	 * @return The total size of the messages
+	 */
+	private long countOccupiedBytes() {
+		long occupancy = 0;
 		for (Message m : getMessageCollection()) {
 			occupancy += m.getSize();
 		}
-		
-		return this.getBufferSize() - occupancy;
+		return occupancy;
 	}
 	
 	/**
@@ -359,7 +504,8 @@ public abstract class MessageRouter {
 	 * @return The message that this host received
 	 */
 	public Message messageTransferred(String id, DTNHost from) {
-		Message incoming = removeFromIncomingBuffer(id, from);
+		int index = MessageIdTable.getInstance().getIndex(id);
+		Message incoming = removeFromIncomingBuffer(index, from);
 		boolean isFinalRecipient;
 		boolean isFirstDelivery; // is this first delivered instance of the msg
 		
@@ -381,22 +527,26 @@ public abstract class MessageRouter {
 		}
 		
 		Message aMessage = (outgoing==null)?(incoming):(outgoing);
+		// An application may have replaced the message with one that has
+		// another ID
+		int aIndex = aMessage == incoming ? index :
+			MessageIdTable.getInstance().intern(aMessage.getId());
 		// If the application re-targets the message (changes 'to')
 		// then the message is not considered as 'delivered' to this host.
 		isFinalRecipient = aMessage.getTo() == this.host;
 		isFirstDelivery = isFinalRecipient &&
-		!isDeliveredMessage(aMessage);
+		!this.deliveredMessages.contains(aIndex);
 
 		if (!isFinalRecipient && outgoing!=null) {
 			// not the final recipient and app doesn't want to drop the message
 			// -> put to buffer
-			addToMessages(aMessage, false);
+			addToMessages(aMessage, aIndex, false);
 		} else if (isFirstDelivery) {
-			this.deliveredMessages.put(id, aMessage);
+			this.deliveredMessages.add(index);
 		} else if (outgoing == null) {
 			// Blacklist messages that an app wants to drop.
 			// Otherwise the peer will just try to send it back again.
-			this.blacklistedMessages.put(id, null);
+			this.blacklistedMessages.add(index);
 		}
 		
 		for (MessageListener ml : this.mListeners) {
@@ -414,7 +564,10 @@ public abstract class MessageRouter {
 	 * @param from Who the message was from (previous hop).
 	 */
 	protected void putToIncomingBuffer(Message m, DTNHost from) {
-		this.incomingMessages.put(m.getId() + "_" + from.toString(), m);
+		int index = MessageIdTable.getInstance().intern(m.getId());
+		if (this.incomingMessages.put(getIncomingKey(index, from), m) == null) {
+			this.incomingCounts.increment(index);
+		}
 	}
 	
 	/**
@@ -425,7 +578,36 @@ public abstract class MessageRouter {
 	 * @return The found message or null if such message wasn't found
 	 */
 	protected Message removeFromIncomingBuffer(String id, DTNHost from) {
-		return this.incomingMessages.remove(id + "_" + from.toString());
+		return removeFromIncomingBuffer(
+				MessageIdTable.getInstance().getIndex(id), from);
+	}
+	
+	/**
+	 * Removes and returns a message from the incoming messages buffer
+	 * @param index Index of the ID of the message
+	 * @param from The host that sent this message (previous hop)
+	 * @return The found message or null if such message wasn't found
+	 */
+	private Message removeFromIncomingBuffer(int index, DTNHost from) {
+		if (index == MessageIdTable.UNKNOWN_ID) {
+			return null;
+		}
+		Message m = this.incomingMessages.remove(getIncomingKey(index, from));
+		if (m != null) {
+			this.incomingCounts.decrement(index);
+		}
+		return m;
+	}
+	
+	/**
+	 * Returns the key of an incoming message: the index of the message's
+	 * ID in the high bits and the address of the from host in the low bits.
+	 * @param index Index of the ID of the message
+	 * @param from The host that sent the message (previous hop)
+	 * @return The key
+	 */
+	private static long getIncomingKey(int index, DTNHost from) {
+		return ((long)index << 32) | (from.getAddress() & 0xFFFFFFFFL);
 	}
 	
 	/**
@@ -435,7 +617,9 @@ public abstract class MessageRouter {
 	 * @return True if such message is incoming right now
 	 */
 	protected boolean isIncomingMessage(String id) {
-		return this.incomingMessages.containsKey(id);
+		int index = MessageIdTable.getInstance().getIndex(id);
+		return index != MessageIdTable.UNKNOWN_ID &&
+			this.incomingCounts.contains(index);
 	}
 	
 	/**
@@ -446,7 +630,24 @@ public abstract class MessageRouter {
 	 * message, if false, nothing is informed.
 	 */
 	protected void addToMessages(Message m, boolean newMessage) {
-		this.messages.put(m.getId(), m);
+		addToMessages(m, MessageIdTable.getInstance().intern(m.getId()),
+				newMessage);
+	}
+	
+	/**
+	 * Adds a message whose ID is already interned to the message buffer
+	 * (see {@link #addToMessages(Message, boolean)}).
+	 * @param m The message to add
+	 * @param index Index of the ID of the message
+	 * @param newMessage If true, message listeners are informed about a new
+	 * message
+	 */
+	private void addToMessages(Message m, int index, boolean newMessage) {
+		Message old = this.messages.add(m, index);
+		if (old != null) {
+			this.occupiedBytes -= old.getSize(); /* replaced */
+		}
+		this.occupiedBytes += m.getSize();
 		
 		if (newMessage) {
 			for (MessageListener ml : this.mListeners) {
@@ -462,6 +663,9 @@ public abstract class MessageRouter {
 	 */
 	protected Message removeFromMessages(String id) {
 		Message m = this.messages.remove(id);
+		if (m != null) {
+			this.occupiedBytes -= m.getSize();
+		}
 		return m;
 	}
 	
@@ -486,14 +690,16 @@ public abstract class MessageRouter {
 	}
 	
 	/**
-	 * Creates a new message to the router.
+	 * Creates a new message to the router. The ID of the message is
+	 * interned here (see {@link MessageIdTable}), so the copies of the
+	 * message are known by the index of the ID.
 	 * @param m The message to create
 	 * @return True if the creation succeeded, false if not (e.g.
 	 * the message was too big for the buffer)
 	 */
 	public boolean createNewMessage(Message m) {
 		m.setTtl(this.msgTtl);
-		addToMessages(m, true);		
+		addToMessages(m, MessageIdTable.getInstance().intern(m.getId()), true);		
 		return true;
 	}
 	
@@ -691,7 +897,9 @@ public abstract class MessageRouter {
 	}
 	
 	/**
-	 * Returns routing information about this router.
+	 * Returns routing information about this router. The carried and
+	 * delivered messages are listed only when the children of their infos
+	 * are asked for (e.g., by the GUI).
 	 * @return The routing information.
 	 */
 	public RoutingInfo getRoutingInfo() {
@@ -699,9 +907,33 @@ public abstract class MessageRouter {
 		RoutingInfo incoming = new RoutingInfo(this.incomingMessages.size() + 
 				" incoming message(s)");
 		RoutingInfo carrying = new RoutingInfo(this.messages.size() + 
-				" carrying message(s)");
-		RoutingInfo delivered = new RoutingInfo(this.deliveredMessages.size() +
-				" delivered message(s)");
+				" carrying message(s)") {
+			@Override
+			protected void createMoreInfo() {
+				for (Message m : messages.getMessages()) {
+					addMoreInfo(new RoutingInfo(m));
+				}
+			}
+		};
+		RoutingInfo delivered = new RoutingInfo(
+				(this.deliveredMessages.isExact() ? "" : "at least ") +
+				this.deliveredMessages.size() + " delivered message(s)") {
+			@Override
+			protected void createMoreInfo() {
+				if (!deliveredMessages.isExact()) {
+					addMoreInfo(new RoutingInfo("(approximate set, " +
+							"IDs not available)"));
+					return;
+				}
+				/* only the IDs are kept, not the messages and their paths */
+				addMoreInfo(new RoutingInfo("(IDs only, paths not kept)"));
+				MessageIdTable ids = MessageIdTable.getInstance();
+				for (int i = deliveredMessages.nextIndex(0); i >= 0;
+						i = deliveredMessages.nextIndex(i + 1)) {
+					addMoreInfo(new RoutingInfo(ids.getId(i)));
+				}
+			}
+		};
 		
 		RoutingInfo cons = new RoutingInfo(host.getConnections().size() + 
 			" connection(s)");
@@ -713,14 +945,6 @@ public abstract class MessageRouter {
 		
 		for (Message m : this.incomingMessages.values()) {
 			incoming.addMoreInfo(new RoutingInfo(m));
-		}
-		
-		for (Message m : this.messages.values()) {
-			carrying.addMoreInfo(new RoutingInfo(m));
-		}
-		
-		for (Message m : this.deliveredMessages.values()) {
-			delivered.addMoreInfo(new RoutingInfo(m + " path:" + m.getHops()));
 		}
 		
 		for (Connection c : host.getConnections()) {
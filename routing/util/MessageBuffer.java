@@ -0,0 +1,416 @@
+/* 
+ * Copyright 2010 Aalto University, ComNet
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package routing.util;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import routing.MessageRouter;
+
+import util.LongObjectMap;
+
+import core.Message;
+import core.MessageIdTable;
+import core.SimClock;
+import core.SimError;
+
+/**
+ * Message buffer of a router. Keeps the messages by the indices of their
+ * IDs (see {@link MessageIdTable}) and ordered
+ * by the router's send and remove queue modes (see
+ * {@link MessageRouter#SEND_QUEUE_MODE_S} and
+ * {@link MessageRouter#REMOVE_QUEUE_MODE_S}), so the messages in queue order
+ * and the next message to remove are found without sorting or scanning the
+ * buffer. Adding and removing a message take O(log n) time. Messages with
+ * the same order key are in the order they were added. The random queue
+ * mode has no order; the routers shuffle or scan the messages for it.
+ * <P>The buffer also keeps the messages with a finite TTL in the order of
+ * their expiry times, so the messages that have expired by a given time are
+ * found without checking the TTL of every message (see
+ * {@link #getExpired(double, List)}).</P>
+ * <P>The order keys (receive and creation times and the expiry time) of a
+ * message are read when the message is added, so changing them while the
+ * message is buffered doesn't change its place in the order.</P>
+ */
+public class MessageBuffer {
+	/** Length of one TTL unit (a minute) in seconds ({@value}) */
+	public static final double TTL_UNIT = 60;
+	/** Times closer than this ({@value}) to an expiry time are at it */
+	public static final double TIME_EPSILON = 1e-9;
+
+	/** the buffered messages by ID index */
+	private LongObjectMap<Entry> entries;
+	/** the messages in send queue order (null for random queue mode) */
+	private TreeSet<Entry> sendOrder;
+	/** the messages in remove queue order (null for random queue mode) */
+	private TreeSet<Entry> removeOrder;
+	/** the messages with a finite TTL in the order of expiry times */
+	private TreeSet<Entry> expiryOrder;
+	/** sequence number of the next added message */
+	private long nextSeq;
+	/** view of the messages */
+	private Collection<Message> messages;
+
+	/**
+	 * Creates a new, empty buffer.
+	 * @param sendQueueMode The send queue mode
+	 * @param removeQueueMode The remove queue mode
+	 */
+	public MessageBuffer(int sendQueueMode, int removeQueueMode) {
+		this.entries = new LongObjectMap<Entry>();
+		this.sendOrder = createOrder(sendQueueMode);
+		this.removeOrder = (removeQueueMode == sendQueueMode ?
+				this.sendOrder : createOrder(removeQueueMode));
+		this.expiryOrder = new TreeSet<Entry>(new Comparator<Entry>() {
+			/** Compares by the expiry time, then by addition */
+			public int compare(Entry e1, Entry e2) {
+				int order = Double.compare(e1.expiryTime, e2.expiryTime);
+				if (order != 0) {
+					return order;
+				}
+				return (e1.seq < e2.seq ? -1 : (e1.seq > e2.seq ? 1 : 0));
+			}
+		});
+		this.nextSeq = 0;
+		this.messages = new MessageCollection();
+	}
+
+	/**
+	 * Creates an ordered set of entries for a queue mode
+	 * @param queueMode The queue mode
+	 * @return The ordered set or null if the mode has no order
+	 */
+	private static TreeSet<Entry> createOrder(final int queueMode) {
+		switch (queueMode) {
+		case MessageRouter.Q_MODE_RANDOM:
+			return null;
+		case MessageRouter.Q_MODE_FIFO:
+		case MessageRouter.Q_MODE_LIFO:
+		case MessageRouter.Q_MODE_YOUNGEST:
+		case MessageRouter.Q_MODE_OLDEST:
+			break;
+		/* add more queue modes here */
+		default:
+			throw new SimError("Unknown queue mode " + queueMode);
+		}
+
+		return new TreeSet<Entry>(new Comparator<Entry>() {
+			/** Compares by the key of the queue mode, then by addition */
+			public int compare(Entry e1, Entry e2) {
+				int order;
+				switch (queueMode) {
+				case MessageRouter.Q_MODE_FIFO:
+					order = Double.compare(e1.receiveTime, e2.receiveTime);
+					break;
+				case MessageRouter.Q_MODE_LIFO:
+					order = Double.compare(e2.receiveTime, e1.receiveTime);
+					break;
+				case MessageRouter.Q_MODE_YOUNGEST:
+					order = Double.compare(e1.creationTime, e2.creationTime);
+					break;
+				default: /* oldest */
+					order = Double.compare(e2.creationTime, e1.creationTime);
+					break;
+				}
+				if (order != 0) {
+					return order;
+				}
+				return (e1.seq < e2.seq ? -1 : (e1.seq > e2.seq ? 1 : 0));
+			}
+		});
+	}
+
+	/**
+	 * Adds a message to the buffer. A message with the same ID is replaced.
+	 * @param m The message to add
+	 * @return The replaced message or null if there was no message with the
+	 * same ID
+	 */
+	public Message add(Message m) {
+		return add(m, MessageIdTable.getInstance().intern(m.getId()));
+	}
+
+	/**
+	 * Adds a message whose ID the caller has already interned to the
+	 * buffer. A message with the same ID is replaced.
+	 * @param m The message to add
+	 * @param index Index of the ID of the message (see
+	 * {@link MessageIdTable#intern(String)})
+	 * @return The replaced message or null if there was no message with the
+	 * same ID
+	 */
+	public Message add(Message m, int index) {
+		assert index == MessageIdTable.getInstance().getIndex(m.getId()) :
+			"Wrong index " + index + " for message " + m;
+		Message old = remove(index);
+		Entry e = new Entry(m, this.nextSeq++,
+				getExpiryTime(m, SimClock.getTime()));
+		this.entries.put(index, e);
+		if (this.sendOrder != null) {
+			this.sendOrder.add(e);
+		}
+		if (this.removeOrder != null && this.removeOrder != this.sendOrder) {
+			this.removeOrder.add(e);
+		}
+		if (e.expiryTime < Double.MAX_VALUE) {
+			this.expiryOrder.add(e);
+		}
+		return old;
+	}
+
+	/**
+	 * Removes a message from the buffer
+	 * @param id ID of the message
+	 * @return The removed message or null if there was no message with the
+	 * ID
+	 */
+	public Message remove(String id) {
+		return remove(MessageIdTable.getInstance().getIndex(id));
+	}
+
+	/**
+	 * Removes a message from the buffer
+	 * @param index Index of the ID of the message
+	 * @return The removed message or null if there was no message with the
+	 * ID
+	 */
+	private Message remove(int index) {
+		Entry e = this.entries.remove(index);
+		if (e == null) {
+			return null;
+		}
+		if (this.sendOrder != null) {
+			this.sendOrder.remove(e);
+		}
+		if (this.removeOrder != null && this.removeOrder != this.sendOrder) {
+			this.removeOrder.remove(e);
+		}
+		if (e.expiryTime < Double.MAX_VALUE) {
+			this.expiryOrder.remove(e);
+		}
+		return e.message;
+	}
+
+	/**
+	 * Returns a message by ID
+	 * @param id ID of the message
+	 * @return The message or null if there is no message with the ID
+	 */
+	public Message get(String id) {
+		Entry e = this.entries.get(MessageIdTable.getInstance().getIndex(id));
+		return (e == null ? null : e.message);
+	}
+
+	/**
+	 * Returns true if the buffer has a message with the given ID
+	 * @param id ID of the message
+	 * @return True if the message is in the buffer
+	 */
+	public boolean contains(String id) {
+		return this.entries.containsKey(
+				MessageIdTable.getInstance().getIndex(id));
+	}
+
+	/**
+	 * Returns the number of messages in the buffer
+	 * @return The number of messages
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Returns a view of the messages in the buffer (in no particular order)
+	 * @return The messages
+	 */
+	public Collection<Message> getMessages() {
+		return this.messages;
+	}
+
+	/**
+	 * Returns true if the buffer keeps the messages in the order of the
+	 * send or remove queue mode (i.e., the mode is not random)
+	 * @param forRemove If true, the remove queue mode is checked, otherwise
+	 * the send queue mode
+	 * @return True if the messages are ordered
+	 */
+	public boolean isOrdered(boolean forRemove) {
+		return (forRemove ? this.removeOrder : this.sendOrder) != null;
+	}
+
+	/**
+	 * Returns the messages in the order of the send or remove queue mode
+	 * (the message to send or remove first is the first one). If the mode
+	 * has no order, the messages are in no particular order.
+	 * @param forRemove If true, the order of the remove queue mode is used,
+	 * otherwise the order of the send queue mode
+	 * @return The messages in the order
+	 */
+	public Iterable<Message> getMessages(boolean forRemove) {
+		final TreeSet<Entry> order = (forRemove ? this.removeOrder :
+			this.sendOrder);
+		if (order == null) {
+			return this.messages;
+		}
+		return new Iterable<Message>() {
+			public Iterator<Message> iterator() {
+				return new MessageIterator(order.iterator());
+			}
+		};
+	}
+
+	/**
+	 * Adds the messages to a list in the order of the send queue mode (in
+	 * no particular order if the mode has no order)
+	 * @param list The list where the messages are added
+	 * @return The list
+	 */
+	public List<Message> getMessagesInSendOrder(List<Message> list) {
+		if (this.sendOrder == null) {
+			list.addAll(this.messages);
+			return list;
+		}
+		for (Entry e : this.sendOrder) {
+			list.add(e.message);
+		}
+		return list;
+	}
+
+	/**
+	 * Adds the messages whose expiry time is before the given time to a
+	 * list in the order of the expiry times. The messages are not removed
+	 * from the buffer. Takes O(log n + k) time for k expired messages.
+	 * @param time The time (e.g., current simulation time)
+	 * @param list The list where the messages are added
+	 * @return The list
+	 */
+	public List<Message> getExpired(double time, List<Message> list) {
+		for (Entry e : this.expiryOrder) {
+			if (e.expiryTime >= time) {
+				break;
+			}
+			list.add(e.message);
+		}
+		return list;
+	}
+
+	/**
+	 * Updates the expiry time of a message from its current TTL, e.g., if
+	 * the TTL was changed while the message was buffered. The new expiry
+	 * time is not before the given time.
+	 * @param id ID of the message
+	 * @param time The time (e.g., current simulation time)
+	 */
+	public void updateExpiryTime(String id, double time) {
+		Entry e = this.entries.get(MessageIdTable.getInstance().getIndex(id));
+		if (e == null) {
+			return;
+		}
+		if (e.expiryTime < Double.MAX_VALUE) {
+			this.expiryOrder.remove(e);
+		}
+		e.expiryTime = getExpiryTime(e.message, time);
+		if (e.expiryTime < Double.MAX_VALUE) {
+			e.expiryTime = Math.max(e.expiryTime, time);
+			this.expiryOrder.add(e);
+		}
+	}
+
+	/**
+	 * Returns the expiry time of a message, i.e., the time after which its
+	 * TTL is zero or less. The TTL is in whole minutes and decreases only
+	 * when a whole minute has passed since the creation of the message, so
+	 * the expiry time is the creation time plus a multiple of a minute and
+	 * less than a minute before the current TTL has passed.
+	 * @param m The message
+	 * @param time Current simulation time
+	 * @return The expiry time, -Double.MAX_VALUE if the message has already
+	 * expired or Double.MAX_VALUE if its TTL is infinite
+	 */
+	private static double getExpiryTime(Message m, double time) {
+		int ttl = m.getTtl();
+		if (ttl == Integer.MAX_VALUE) {
+			return Double.MAX_VALUE; /* infinite TTL */
+		}
+		if (ttl <= 0) {
+			return -Double.MAX_VALUE;
+		}
+
+		double from = time + (ttl - 1) * TTL_UNIT;
+		double offset = (m.getCreationTime() - from) % TTL_UNIT;
+		if (offset < 0) {
+			offset += TTL_UNIT;
+		}
+		if (offset >= TTL_UNIT - TIME_EPSILON) {
+			offset = 0; /* at the start of the next minute */
+		}
+		return from + offset;
+	}
+
+	/**
+	 * A buffered message and its order keys
+	 */
+	private static class Entry {
+		private Message message;
+		private double receiveTime;
+		private double creationTime;
+		/** time after which the message has expired (Double.MAX_VALUE for
+		 * infinite TTL) */
+		private double expiryTime;
+		/** sequence number of the addition */
+		private long seq;
+
+		private Entry(Message message, long seq, double expiryTime) {
+			this.message = message;
+			this.receiveTime = message.getReceiveTime();
+			this.creationTime = message.getCreationTime();
+			this.expiryTime = expiryTime;
+			this.seq = seq;
+		}
+	}
+
+	/**
+	 * Iterator of the messages of entries. Removing is not supported,
+	 * since it would not update the other structures of the buffer.
+	 */
+	private static class MessageIterator implements Iterator<Message> {
+		private Iterator<Entry> entries;
+
+		private MessageIterator(Iterator<Entry> entries) {
+			this.entries = entries;
+		}
+
+		public boolean hasNext() {
+			return this.entries.hasNext();
+		}
+
+		public Message next() {
+			return this.entries.next().message;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Unmodifiable view of the messages of the buffer
+	 */
+	private class MessageCollection extends AbstractCollection<Message> {
+		@Override
+		public Iterator<Message> iterator() {
+			return new MessageIterator(entries.values().iterator());
+		}
+
+		@Override
+		public int size() {
+			return entries.size();
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/* 
+ * Copyright 2010 Aalto University, ComNet
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package routing.util;
+
+import java.util.BitSet;
+
+import core.MessageIdTable;
+
+/**
+ * Compact set of messages (e.g., the messages delivered to a host) that
+ * doesn't keep references to the messages. The messages are identified by
+ * the indices of their IDs (see {@link MessageIdTable}).
+ * <P>An exact set has one bit for each index up to the highest index in the
+ * set. An approximate set is a Bloom filter whose size depends only on the
+ * expected number of messages and the false positive rate: it never misses
+ * a message that was added, but it may claim to contain a message that was
+ * not added. The bits of a Bloom filter are allocated only when the first
+ * message is added, so empty sets stay small. The indices in an
+ * approximate set can't be listed.</P>
+ */
+public class MessageIdSet {
+	/** the bits of the set (null for an empty Bloom filter) */
+	private BitSet bits;
+	/** number of bits in a Bloom filter (0 for an exact set) */
+	private int nrofBits;
+	/** number of hash functions of a Bloom filter (0 for an exact set) */
+	private int nrofHashes;
+	/** number of messages added to the set (a lower bound of it for an
+	 * approximate set) */
+	private int size;
+
+	/**
+	 * Creates a new, empty exact set.
+	 */
+	public MessageIdSet() {
+		this.bits = new BitSet();
+		this.nrofBits = 0;
+		this.nrofHashes = 0;
+		this.size = 0;
+	}
+
+	/**
+	 * Creates a new, empty approximate set (Bloom filter).
+	 * @param capacity Expected number of messages in the set
+	 * @param falsePositiveRate Probability that the set claims to contain
+	 * a message that was not added when it has the expected number of
+	 * messages (must be between 0 and 1, exclusive)
+	 */
+	public MessageIdSet(int capacity, double falsePositiveRate) {
+		assert capacity > 0 && falsePositiveRate > 0 &&
+			falsePositiveRate < 1 : "Invalid Bloom filter dimensions";
+		double ln2 = Math.log(2);
+		this.nrofBits = (int)Math.ceil(-capacity * Math.log(falsePositiveRate)
+				/ (ln2 * ln2));
+		this.nrofHashes = Math.max(1,
+				(int)Math.round((double)this.nrofBits / capacity * ln2));
+		this.bits = null; /* allocated on the first add */
+		this.size = 0;
+	}
+
+	/**
+	 * Adds a message to the set
+	 * @param index Index of the ID of the message
+	 * @return True if the message was not in the set (as far as an
+	 * approximate set can tell), false if it was
+	 */
+	public boolean add(int index) {
+		if (isExact()) {
+			if (this.bits.get(index)) {
+				return false;
+			}
+			this.bits.set(index);
+			this.size++;
+			return true;
+		}
+
+		if (this.bits == null) {
+			this.bits = new BitSet(this.nrofBits);
+		}
+		boolean added = false;
+		int h1 = hash(index);
+		int h2 = hash(~index) | 1;
+		for (int i=0; i<this.nrofHashes; i++) {
+			int bit = getBit(h1 + i * h2);
+			if (!this.bits.get(bit)) {
+				this.bits.set(bit);
+				added = true;
+			}
+		}
+		if (added) {
+			this.size++;
+		}
+		return added;
+	}
+
+	/**
+	 * Returns true if the set contains a message. An approximate set may
+	 * return true for a message that was not added.
+	 * @param index Index of the ID of the message
+	 * @return True if the message is in the set, false if not
+	 */
+	public boolean contains(int index) {
+		if (index < 0) {
+			return false; /* unknown ID */
+		}
+		if (isExact()) {
+			return this.bits.get(index);
+		}
+		if (this.bits == null) {
+			return false; /* nothing added yet */
+		}
+
+		int h1 = hash(index);
+		int h2 = hash(~index) | 1;
+		for (int i=0; i<this.nrofHashes; i++) {
+			if (!this.bits.get(getBit(h1 + i * h2))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of messages added to the set. The size of an exact
+	 * set is exact. The size of an approximate set is only a lower bound:
+	 * the set counts a message when adding it sets at least one new bit, so
+	 * it doesn't count a new message whose bits were all set already (a
+	 * false positive), and it can't tell that message apart from one that
+	 * is added again.
+	 * @return The number of messages (exact or a lower bound)
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns true if the set is exact, false if it is approximate
+	 * @return True for an exact set
+	 */
+	public boolean isExact() {
+		return this.nrofHashes == 0;
+	}
+
+	/**
+	 * Returns the next index in an exact set
+	 * @param from The index to start from (inclusive)
+	 * @return The next index in the set or -1 if there are no more indices
+	 */
+	public int nextIndex(int from) {
+		assert isExact() : "Indices of an approximate set can't be listed";
+		return this.bits.nextSetBit(from);
+	}
+
+	/**
+	 * Returns the Bloom filter bit of a hash value
+	 */
+	private int getBit(int hash) {
+		return (int)((hash & 0xFFFFFFFFL) % this.nrofBits);
+	}
+
+	/**
+	 * Returns the hash of an index (the finalizer of MurmurHash3)
+	 */
+	private static int hash(int index) {
+		int h = index;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -9,11 +9,14 @@ import java.util.List;
 
 /**
  * Class for storing routing related information in a tree form for
- * user interface(s). 
+ * user interface(s). Subclasses can create the children of an info lazily
+ * by overriding {@link #createMoreInfo()}.
  */
 public class RoutingInfo {
 	private String text;
 	private List<RoutingInfo> moreInfo = null;
+	/** has {@link #createMoreInfo()} been called */
+	private boolean moreInfoCreated = false;
 	
 	/**
 	 * Creates a routing info based on a text.
@@ -49,12 +52,25 @@ public class RoutingInfo {
 	 * doesn't have any children.
 	 */
 	public List<RoutingInfo> getMoreInfo() {
+		if (!this.moreInfoCreated) {
+			this.moreInfoCreated = true;
+			createMoreInfo();
+		}
 		if (this.moreInfo == null) {
 			return new ArrayList<RoutingInfo>(0);
 		}
 		return this.moreInfo;
 	}
 	
+	/**
+	 * Creates the child infos of this info when they are asked for the
+	 * first time (see {@link #getMoreInfo()}). Subclasses whose children
+	 * are expensive to create can add them here with
+	 * {@link #addMoreInfo(RoutingInfo)}, so they are not created unless
+	 * e.g. the GUI shows them. Default implementation does nothing.
+	 */
+	protected void createMoreInfo() { }
+	
 	/**
 	 * Returns the info text of this routing info.
 	 * @return The info text
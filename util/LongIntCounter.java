@@ -0,0 +1,191 @@
+/* 
+ * Copyright 2010 Aalto University, ComNet
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package util;
+
+/**
+ * Counts of primitive long keys. The keys and counts are stored in parallel
+ * arrays with open addressing (linear probing) like in {@link LongObjectMap},
+ * so changing a count doesn't create entry or boxed objects. Only the keys
+ * with a positive count are kept: a key whose count drops to zero is
+ * removed.
+ */
+public class LongIntCounter {
+	/** Default initial capacity ({@value}) */
+	public static final int DEF_CAPACITY = 16;
+	/** The table is grown when it is fuller than this ({@value}) */
+	public static final double MAX_LOAD = 0.5;
+
+	/** the keys of the table */
+	private long[] keys;
+	/** the counts of the keys */
+	private int[] counts;
+	/** which slots of the table are in use */
+	private boolean[] used;
+	/** number of keys with a count */
+	private int size;
+
+	/**
+	 * Creates a new counter with no keys and the default capacity.
+	 */
+	public LongIntCounter() {
+		this(DEF_CAPACITY);
+	}
+
+	/**
+	 * Creates a new counter with no keys.
+	 * @param capacity Number of keys the counter can hold before it is grown
+	 */
+	public LongIntCounter(int capacity) {
+		int tableSize = 2;
+		while (tableSize * MAX_LOAD < capacity) {
+			tableSize *= 2;
+		}
+		this.keys = new long[tableSize];
+		this.counts = new int[tableSize];
+		this.used = new boolean[tableSize];
+		this.size = 0;
+	}
+
+	/**
+	 * Returns the count of a key
+	 * @param key The key
+	 * @return The count or 0 if the key has not been counted
+	 */
+	public int get(long key) {
+		int i = indexOf(key);
+		return (i < 0 ? 0 : this.counts[i]);
+	}
+
+	/**
+	 * Returns true if a key has a positive count
+	 * @param key The key
+	 * @return True if the key is counted, false if not
+	 */
+	public boolean contains(long key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Increases the count of a key by one
+	 * @param key The key
+	 * @return The new count of the key
+	 */
+	public int increment(long key) {
+		int mask = this.keys.length - 1;
+		int i = hash(key) & mask;
+		while (this.used[i]) {
+			if (this.keys[i] == key) {
+				return ++this.counts[i];
+			}
+			i = (i + 1) & mask;
+		}
+
+		this.keys[i] = key;
+		this.counts[i] = 1;
+		this.used[i] = true;
+		this.size++;
+		if (this.size > this.keys.length * MAX_LOAD) {
+			grow();
+		}
+		return 1;
+	}
+
+	/**
+	 * Decreases the count of a key by one and removes the key if its count
+	 * drops to zero. Keys that are not counted are ignored.
+	 * @param key The key
+	 * @return The new count of the key
+	 */
+	public int decrement(long key) {
+		int i = indexOf(key);
+		if (i < 0) {
+			return 0;
+		}
+		if (--this.counts[i] > 0) {
+			return this.counts[i];
+		}
+		this.size--;
+
+		/* move back the keys that would not be found after the gap */
+		int mask = this.keys.length - 1;
+		int gap = i;
+		for (int j = (i + 1) & mask; this.used[j]; j = (j + 1) & mask) {
+			int home = hash(this.keys[j]) & mask;
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				this.keys[gap] = this.keys[j];
+				this.counts[gap] = this.counts[j];
+				gap = j;
+			}
+		}
+		this.used[gap] = false;
+		return 0;
+	}
+
+	/**
+	 * Returns the number of keys with a positive count
+	 * @return The number of keys
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Removes all keys from the counter
+	 */
+	public void clear() {
+		for (int i=0; i<this.keys.length; i++) {
+			this.used[i] = false;
+		}
+		this.size = 0;
+	}
+
+	/**
+	 * Returns the slot of a key or -1 if the key is not counted
+	 */
+	private int indexOf(long key) {
+		int mask = this.keys.length - 1;
+		int i = hash(key) & mask;
+		while (this.used[i]) {
+			if (this.keys[i] == key) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Doubles the size of the table and puts the keys to the new table
+	 */
+	private void grow() {
+		long[] oldKeys = this.keys;
+		int[] oldCounts = this.counts;
+		boolean[] oldUsed = this.used;
+
+		this.keys = new long[oldKeys.length * 2];
+		this.counts = new int[oldKeys.length * 2];
+		this.used = new boolean[oldKeys.length * 2];
+		int mask = this.keys.length - 1;
+		for (int i=0; i<oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				int j = hash(oldKeys[i]) & mask;
+				while (this.used[j]) {
+					j = (j + 1) & mask;
+				}
+				this.keys[j] = oldKeys[i];
+				this.counts[j] = oldCounts[i];
+				this.used[j] = true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the hash of a key (see {@link LongObjectMap})
+	 */
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
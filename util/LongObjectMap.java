@@ -0,0 +1,256 @@
+/* 
+ * Copyright 2010 Aalto University, ComNet
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package util;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Hash map with primitive long keys. The keys and values are stored in
+ * parallel arrays with open addressing (linear probing), so no entry or
+ * boxed key objects are created. Removing a key moves the following keys of
+ * its probe sequence back, so the table has no deleted markers. Null values
+ * are allowed.
+ * @param <V> Type of the values
+ */
+public class LongObjectMap<V> {
+	/** Default initial capacity ({@value}) */
+	public static final int DEF_CAPACITY = 16;
+	/** The table is grown when it is fuller than this ({@value}) */
+	public static final double MAX_LOAD = 0.5;
+
+	/** the keys of the table */
+	private long[] keys;
+	/** the values of the table */
+	private Object[] values;
+	/** which slots of the table are in use */
+	private boolean[] used;
+	/** number of keys in the map */
+	private int size;
+	/** view of the values */
+	private Collection<V> valueView;
+
+	/**
+	 * Creates a new, empty map with the default capacity.
+	 */
+	public LongObjectMap() {
+		this(DEF_CAPACITY);
+	}
+
+	/**
+	 * Creates a new, empty map.
+	 * @param capacity Number of keys the map can hold before it is grown
+	 */
+	public LongObjectMap(int capacity) {
+		int tableSize = 2;
+		while (tableSize * MAX_LOAD < capacity) {
+			tableSize *= 2;
+		}
+		this.keys = new long[tableSize];
+		this.values = new Object[tableSize];
+		this.used = new boolean[tableSize];
+		this.size = 0;
+		this.valueView = new ValueCollection();
+	}
+
+	/**
+	 * Returns the value of a key
+	 * @param key The key
+	 * @return The value or null if the map doesn't contain the key
+	 */
+	@SuppressWarnings(value = "unchecked")
+	public V get(long key) {
+		int i = indexOf(key);
+		return (i < 0 ? null : (V)this.values[i]);
+	}
+
+	/**
+	 * Returns true if the map contains a key
+	 * @param key The key
+	 * @return True if the map contains the key, false if not
+	 */
+	public boolean containsKey(long key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Puts a value for a key to the map
+	 * @param key The key
+	 * @param value The value
+	 * @return The previous value of the key or null if there was none
+	 */
+	@SuppressWarnings(value = "unchecked")
+	public V put(long key, V value) {
+		int mask = this.keys.length - 1;
+		int i = hash(key) & mask;
+		while (this.used[i]) {
+			if (this.keys[i] == key) {
+				V old = (V)this.values[i];
+				this.values[i] = value;
+				return old;
+			}
+			i = (i + 1) & mask;
+		}
+
+		this.keys[i] = key;
+		this.values[i] = value;
+		this.used[i] = true;
+		this.size++;
+		if (this.size > this.keys.length * MAX_LOAD) {
+			grow();
+		}
+		return null;
+	}
+
+	/**
+	 * Removes a key from the map
+	 * @param key The key
+	 * @return The value of the removed key or null if there was no such key
+	 */
+	@SuppressWarnings(value = "unchecked")
+	public V remove(long key) {
+		int i = indexOf(key);
+		if (i < 0) {
+			return null;
+		}
+		V old = (V)this.values[i];
+		this.size--;
+
+		/* move back the keys that would not be found after the gap */
+		int mask = this.keys.length - 1;
+		int gap = i;
+		for (int j = (i + 1) & mask; this.used[j]; j = (j + 1) & mask) {
+			int home = hash(this.keys[j]) & mask;
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				this.keys[gap] = this.keys[j];
+				this.values[gap] = this.values[j];
+				gap = j;
+			}
+		}
+		this.used[gap] = false;
+		this.values[gap] = null;
+		return old;
+	}
+
+	/**
+	 * Returns the number of keys in the map
+	 * @return The number of keys
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Removes all keys from the map
+	 */
+	public void clear() {
+		for (int i=0; i<this.keys.length; i++) {
+			this.used[i] = false;
+			this.values[i] = null;
+		}
+		this.size = 0;
+	}
+
+	/**
+	 * Returns a view of the values of the map (in no particular order).
+	 * The map must not be modified while iterating.
+	 * @return The values
+	 */
+	public Collection<V> values() {
+		return this.valueView;
+	}
+
+	/**
+	 * Returns the slot of a key or -1 if the map doesn't contain the key
+	 */
+	private int indexOf(long key) {
+		int mask = this.keys.length - 1;
+		int i = hash(key) & mask;
+		while (this.used[i]) {
+			if (this.keys[i] == key) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Doubles the size of the table and puts the keys to the new table
+	 */
+	@SuppressWarnings(value = "unchecked")
+	private void grow() {
+		long[] oldKeys = this.keys;
+		Object[] oldValues = this.values;
+		boolean[] oldUsed = this.used;
+
+		this.keys = new long[oldKeys.length * 2];
+		this.values = new Object[oldKeys.length * 2];
+		this.used = new boolean[oldKeys.length * 2];
+		this.size = 0;
+		for (int i=0; i<oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				put(oldKeys[i], (V)oldValues[i]);
+			}
+		}
+	}
+
+	/**
+	 * Returns the hash of a key. The bits of the key are mixed so that
+	 * consecutive keys and keys that differ only in the high bits don't
+	 * end up in consecutive slots.
+	 */
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	/**
+	 * Unmodifiable view of the values of the map
+	 */
+	private class ValueCollection extends AbstractCollection<V> {
+		@Override
+		public Iterator<V> iterator() {
+			return new Iterator<V>() {
+				private int next = findNext(0);
+
+				public boolean hasNext() {
+					return this.next < used.length;
+				}
+
+				@SuppressWarnings(value = "unchecked")
+				public V next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					V value = (V)values[this.next];
+					this.next = findNext(this.next + 1);
+					return value;
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Returns the first slot in use starting from the given slot
+		 */
+		private int findNext(int from) {
+			while (from < used.length && !used[from]) {
+				from++;
+			}
+			return from;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/* 
+ * Copyright 2010 Aalto University, ComNet
+ * Released under GPLv3. See LICENSE.txt for details. 
+ */
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timing wheel of items that are due at given times. The time is divided
+ * into ticks of constant length and the items are stored in a ring of slots
+ * by the tick of their due time, so adding an item and polling the due items
+ * of a tick don't depend on the total number of items. Items that are due
+ * more than one revolution of the ring later stay in their slot until the
+ * ring comes around to their revolution.
+ * <P>The entries of the polled items are kept and reused for the items that
+ * are added later, so a wheel whose items are rescheduled over and over
+ * doesn't allocate new entries.</P>
+ * @param <T> Type of the items
+ */
+public class TimingWheel<T> {
+	/** length of one tick */
+	private double tickLength;
+	/** the slots of the ring */
+	private List<List<Entry<T>>> slots;
+	/** the last tick that was polled */
+	private long currentTick;
+	/** number of items in the wheel */
+	private int size;
+	/** entries of the polled items, for reuse */
+	private List<Entry<T>> free;
+
+	/**
+	 * Creates a new timing wheel.
+	 * @param tickLength Length of one tick
+	 * @param nrofSlots Number of slots in the ring
+	 */
+	public TimingWheel(double tickLength, int nrofSlots) {
+		assert tickLength > 0 && nrofSlots > 0 : "Invalid wheel dimensions";
+		this.tickLength = tickLength;
+		this.slots = new ArrayList<List<Entry<T>>>(nrofSlots);
+		for (int i=0; i<nrofSlots; i++) {
+			this.slots.add(new ArrayList<Entry<T>>());
+		}
+		this.currentTick = 0;
+		this.size = 0;
+		this.free = new ArrayList<Entry<T>>();
+	}
+
+	/**
+	 * Adds an item to the wheel. Items whose due time has already passed
+	 * are due at the next poll.
+	 * @param item The item to add
+	 * @param time Due time of the item
+	 */
+	public void add(T item, double time) {
+		long tick = Math.max(getTick(time), this.currentTick);
+		Entry<T> e;
+		if (this.free.isEmpty()) {
+			e = new Entry<T>(item, time);
+		} else {
+			e = this.free.remove(this.free.size() - 1);
+			e.item = item;
+			e.time = time;
+		}
+		this.slots.get(getSlot(tick)).add(e);
+		this.size++;
+	}
+
+	/**
+	 * Removes the items that are due at or before the given time from the
+	 * wheel and adds them to a list.
+	 * @param time The time
+	 * @param due The list where the due items are added
+	 * @return The list of due items
+	 */
+	public List<T> poll(double time, List<T> due) {
+		long lastTick = getTick(time);
+		int nrofSlots = this.slots.size();
+		/* no need to go around the ring more than once */
+		long firstTick = Math.max(this.currentTick, lastTick - nrofSlots + 1);
+
+		for (long tick = firstTick; tick <= lastTick && this.size > 0;
+				tick++) {
+			List<Entry<T>> slot = this.slots.get(getSlot(tick));
+			for (int i=0; i<slot.size(); ) {
+				Entry<T> e = slot.get(i);
+				if (e.time <= time) {
+					due.add(e.item);
+					/* move the last entry to the place of the removed one */
+					slot.set(i, slot.get(slot.size() - 1));
+					slot.remove(slot.size() - 1);
+					this.size--;
+					recycle(e);
+				} else {
+					i++;
+				}
+			}
+		}
+
+		this.currentTick = Math.max(this.currentTick, lastTick);
+		return due;
+	}
+
+	/**
+	 * Returns the number of items in the wheel
+	 * @return The number of items
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Removes all items from the wheel
+	 */
+	public void clear() {
+		for (List<Entry<T>> slot : this.slots) {
+			for (Entry<T> e : slot) {
+				recycle(e);
+			}
+			slot.clear();
+		}
+		this.size = 0;
+	}
+
+	/**
+	 * Puts an entry that was removed from the wheel to the free entries
+	 */
+	private void recycle(Entry<T> e) {
+		e.item = null;
+		this.free.add(e);
+	}
+
+	/**
+	 * Returns the tick of a time
+	 */
+	private long getTick(double time) {
+		return (long)Math.floor(time / this.tickLength);
+	}
+
+	/**
+	 * Returns the slot index of a tick
+	 */
+	private int getSlot(long tick) {
+		int nrofSlots = this.slots.size();
+		return (int)(((tick % nrofSlots) + nrofSlots) % nrofSlots);
+	}
+
+	/**
+	 * An item and its due time
+	 */
+	private static class Entry<T> {
+		private T item;
+		private double time;
+
+		private Entry(T item, double time) {
+			this.item = item;
+			this.time = time;
+		}
+	}
+}